@@ -0,0 +1,284 @@
+package human.joecoder.imageblob;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured access log.  Request threads only capture an entry and offer it to a lock-free {@link RingBuffer};
+ * a background thread formats the entries as JSON lines and writes them to a size-rolled file.  When the buffer
+ * is full, entries are dropped and counted rather than blocking the request.
+ */
+public class AccessLog extends AbstractLifeCycle implements RequestLog {
+
+    private static final Logger LOG = Log.getLog();
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+    private static final int DEFAULT_MAX_FILES = 5;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final File file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final RingBuffer<Entry> ring;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running;
+    private Thread drainer;
+
+    // drain thread only
+    private CountingWriter out;
+    private JsonGenerator json;
+    private long reportedDropped;
+
+    /**
+     * Constructor with default capacity and rolling.
+     *
+     * @param file the active log file; rolled files get a numeric suffix
+     */
+    public AccessLog(File file) {
+        this(file, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file        the active log file; rolled files get a numeric suffix
+     * @param capacity    entries buffered before dropping
+     * @param maxFileSize bytes written before rolling
+     * @param maxFiles    rolled files kept
+     */
+    public AccessLog(File file, int capacity, long maxFileSize, int maxFiles) {
+        this.file = file;
+        this.ring = new RingBuffer<>(capacity);
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Number of entries dropped because the buffer was full.
+     *
+     * @return
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void log(Request request, Response response) {
+        if (!running) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.timestamp = request.getTimeStamp();
+        entry.elapsedMillis = System.currentTimeMillis() - entry.timestamp;
+        entry.method = request.getMethod();
+        entry.path = request.getRequestURI();
+        entry.status = response.getCommittedMetaData() != null
+                ? response.getCommittedMetaData().getStatus() : response.getStatus();
+        entry.requestBytes = request.getHttpInput().getContentConsumed();
+        entry.responseBytes = response.getHttpChannel().getBytesWritten();
+        Object timings = request.getAttribute(StageTimings.ATTRIBUTE);
+        if (timings instanceof StageTimings) {
+            entry.timings = (StageTimings) timings;
+        }
+        if (!ring.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        openFile();
+        running = true;
+        drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "AccessLog-" + file.getName());
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        running = false;
+        if (drainer == null) {
+            // failed to start
+            return;
+        }
+        LockSupport.unpark(drainer);
+        drainer.join();
+        drainer = null;
+        if (dropped.get() > 0) {
+            LOG.warn("Access log dropped {} entries", dropped.get());
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                boolean stopping = !running;
+                Entry entry;
+                int written = 0;
+                while ((entry = ring.poll()) != null) {
+                    write(entry);
+                    written++;
+                }
+                if (dropped.get() != reportedDropped) {
+                    reportedDropped = dropped.get();
+                    writeDropped(reportedDropped);
+                    written++;
+                }
+                if (written > 0) {
+                    json.flush();
+                    if (out.count >= maxFileSize) {
+                        roll();
+                    }
+                }
+                if (stopping) {
+                    break;
+                }
+                if (written == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            running = false;
+            LOG.warn("Access log disabled", e);
+        } finally {
+            closeFile();
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("ts", entry.timestamp);
+        json.writeStringField("method", entry.method);
+        json.writeStringField("path", entry.path);
+        json.writeNumberField("status", entry.status);
+        json.writeNumberField("requestBytes", entry.requestBytes);
+        json.writeNumberField("responseBytes", entry.responseBytes);
+        json.writeNumberField("elapsedMillis", entry.elapsedMillis);
+        if (entry.timings != null) {
+            json.writeNumberField("uploads", entry.timings.getUploads());
+            json.writeObjectFieldStart("stageMicros");
+            json.writeNumberField("parse", TimeUnit.NANOSECONDS.toMicros(entry.timings.getParseNanos()));
+            json.writeNumberField("store", TimeUnit.NANOSECONDS.toMicros(entry.timings.getStoreNanos()));
+            json.writeNumberField("encode", TimeUnit.NANOSECONDS.toMicros(entry.timings.getEncodeNanos()));
+            json.writeNumberField("respond", TimeUnit.NANOSECONDS.toMicros(entry.timings.getRespondNanos()));
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+        json.writeRaw('\n');
+    }
+
+    private void writeDropped(long total) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("ts", System.currentTimeMillis());
+        json.writeNumberField("dropped", total);
+        json.writeEndObject();
+        json.writeRaw('\n');
+    }
+
+    private void openFile() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        out = new CountingWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8)), file.length());
+        json = JSON.createGenerator(out);
+        // one JSON document per line, newlines written explicitly
+        json.setRootValueSeparator(null);
+    }
+
+    private void closeFile() {
+        try {
+            if (json != null) {
+                json.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to close access log", e);
+        }
+    }
+
+    private void roll() throws IOException {
+        json.close();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File from = new File(file.getPath() + "." + i);
+            if (from.exists()) {
+                Files.move(from.toPath(), new File(file.getPath() + "." + (i + 1)).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file.toPath());
+        }
+        openFile();
+    }
+
+    /**
+     * Captured on the request thread; formatted on the drain thread.
+     */
+    private static class Entry {
+        long timestamp;
+        long elapsedMillis;
+        String method;
+        String path;
+        int status;
+        long requestBytes;
+        long responseBytes;
+        StageTimings timings;
+    }
+
+    /**
+     * Tracks the file size without a stat per write.  Qualified to avoid {@link RequestLog.Writer}.
+     */
+    private static class CountingWriter extends java.io.Writer {
+        private final java.io.Writer delegate;
+        private long count;
+
+        CountingWriter(java.io.Writer delegate, long count) {
+            this.delegate = delegate;
+            this.count = count;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            delegate.write(cbuf, off, len);
+            // ASCII apart from the path, so chars approximate bytes
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package human.joecoder.imageblob;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rejects upload requests before their body is read when they would exceed the configured limits.
+ * <ul>
+ * <li>413 when the declared Content-Length exceeds the maximum request size</li>
+ * <li>429 + Retry-After when the client has exhausted its token bucket, or too many clients are being tracked</li>
+ * <li>429 + Retry-After when admitting the request would exceed the in-flight byte cap</li>
+ * </ul>
+ * Requests without a body, e.g. downloads, are passed straight through.  Any limit less than or equal to zero is
+ * disabled.  Limits can be changed while running with
+ * {@link #setLimits(long, long, double, int, int)}.
+ */
+public class AdmissionControlFilter implements Filter {
+
+    private static final Logger LOG = Log.getLog();
+    private static final int PERMIT_BYTES = 1024;
+    static final int DEFAULT_MAX_TRACKED_CLIENTS = 10000;
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final long IN_FLIGHT_RETRY_AFTER_SECONDS = 1L;
+    private static final long EVICTION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final ResizableSemaphore inFlight = new ResizableSemaphore();
+    private final AtomicLong nextEviction = new AtomicLong(System.nanoTime());
+    // each request reads this once, so it never mixes old and new limits
+    private volatile Limits limits = new Limits(0L, 0, 0d, 1, DEFAULT_MAX_TRACKED_CLIENTS,
+            new ConcurrentHashMap<String, TokenBucket>());
+
+    /**
+     * Constructor.
+     *
+     * @param maxRequestSize  maximum declared request size in bytes
+     * @param maxInFlightBytes maximum sum of request sizes being processed concurrently
+     * @param rateLimit       requests per second allowed per client address
+     * @param rateBurst       burst size allowed per client address
+     */
+    public AdmissionControlFilter(long maxRequestSize, long maxInFlightBytes, double rateLimit, int rateBurst) {
+        setLimits(maxRequestSize, maxInFlightBytes, rateLimit, rateBurst, DEFAULT_MAX_TRACKED_CLIENTS);
+    }
+
+    /**
+     * Changes the limits; requests already admitted are unaffected.
+     *
+     * @param maxRequestSize    maximum declared request size in bytes
+     * @param maxInFlightBytes  maximum sum of request sizes being processed concurrently
+     * @param rateLimit         requests per second allowed per client address
+     * @param rateBurst         burst size allowed per client address
+     * @param maxTrackedClients number of client token buckets kept before idle ones are evicted
+     */
+    public synchronized void setLimits(long maxRequestSize, long maxInFlightBytes, double rateLimit, int rateBurst,
+                                       int maxTrackedClients) {
+        Limits current = this.limits;
+        int permits = maxInFlightBytes > 0 ? toPermits(maxInFlightBytes) : 0;
+        rateBurst = Math.max(1, rateBurst);
+        // existing buckets refill at the old rate, so only carry them over if it's unchanged
+        ConcurrentMap<String, TokenBucket> buckets =
+                rateLimit == current.rateLimit && rateBurst == current.rateBurst
+                        ? current.buckets : new ConcurrentHashMap<String, TokenBucket>();
+        inFlight.resize(permits);
+        this.limits = new Limits(maxRequestSize, permits, rateLimit, rateBurst, maxTrackedClients, buckets);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        // configured via constructor
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse resp = (HttpServletResponse) response;
+
+        long contentLength = req.getContentLengthLong();
+        if (contentLength == 0 || (contentLength < 0 && req.getHeader("Transfer-Encoding") == null)) {
+            // no body, so nothing to admit
+            chain.doFilter(request, response);
+            return;
+        }
+        Limits limits = this.limits;
+        if (limits.maxRequestSize > 0 && contentLength > limits.maxRequestSize) {
+            reject(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, -1L,
+                    "Request size " + contentLength + " exceeds limit " + limits.maxRequestSize);
+            return;
+        }
+
+        if (limits.rateLimit > 0) {
+            TokenBucket bucket = bucketFor(req.getRemoteAddr(), limits);
+            if (bucket == null) {
+                reject(resp, SC_TOO_MANY_REQUESTS, toRetrySeconds(EVICTION_INTERVAL_NANOS), "Too many clients");
+                return;
+            }
+            long waitNanos = bucket.tryAcquire();
+            if (waitNanos > 0) {
+                reject(resp, SC_TOO_MANY_REQUESTS, toRetrySeconds(waitNanos), "Rate limit exceeded");
+                return;
+            }
+        }
+
+        int permits = 0;
+        if (limits.inFlightPermits > 0) {
+            // unknown lengths (chunked) reserve the worst case
+            long reserve = contentLength >= 0 ? contentLength : limits.maxRequestSize;
+            permits = reserve > 0 ? Math.min(toPermits(reserve), limits.inFlightPermits) : limits.inFlightPermits;
+            if (!inFlight.tryAcquire(permits)) {
+                reject(resp, SC_TOO_MANY_REQUESTS, IN_FLIGHT_RETRY_AFTER_SECONDS, "Too many uploads in flight");
+                return;
+            }
+        }
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            if (permits > 0) {
+                inFlight.release(permits);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        limits.buckets.clear();
+    }
+
+    /**
+     * The client's bucket, created if needed.
+     *
+     * @return null if the client is new and every tracked client is still active
+     */
+    private TokenBucket bucketFor(String client, Limits limits) {
+        ConcurrentMap<String, TokenBucket> buckets = limits.buckets;
+        TokenBucket bucket = buckets.get(client);
+        if (bucket == null) {
+            if (buckets.size() >= limits.maxTrackedClients) {
+                // a full scan is O(tracked clients), so at most one per interval however many new clients arrive
+                long next = nextEviction.get();
+                long now = System.nanoTime();
+                if (now - next >= 0 && nextEviction.compareAndSet(next, now + EVICTION_INTERVAL_NANOS)) {
+                    evictIdleClients(buckets);
+                }
+                if (buckets.size() >= limits.maxTrackedClients) {
+                    return null;
+                }
+            }
+            TokenBucket created = new TokenBucket(limits.rateLimit, limits.rateBurst);
+            bucket = buckets.putIfAbsent(client, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    private static void evictIdleClients(ConcurrentMap<String, TokenBucket> buckets) {
+        Iterator<Map.Entry<String, TokenBucket>> it = buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().isFull()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Immutable snapshot of the limits, swapped as a whole by {@link #setLimits(long, long, double, int, int)}.
+     */
+    private static class Limits {
+        final long maxRequestSize;
+        final int inFlightPermits;
+        final double rateLimit;
+        final int rateBurst;
+        final int maxTrackedClients;
+        // per-client state for this rate; shared with the next snapshot while the rate is unchanged
+        final ConcurrentMap<String, TokenBucket> buckets;
+
+        Limits(long maxRequestSize, int inFlightPermits, double rateLimit, int rateBurst, int maxTrackedClients,
+               ConcurrentMap<String, TokenBucket> buckets) {
+            this.maxRequestSize = maxRequestSize;
+            this.inFlightPermits = inFlightPermits;
+            this.rateLimit = rateLimit;
+            this.rateBurst = rateBurst;
+            this.maxTrackedClients = maxTrackedClients;
+            this.buckets = buckets;
+        }
+    }
+
+    /**
+     * Semaphore whose permit count can be changed while permits are held.
+     */
+    @SuppressWarnings("serial")
+    private static class ResizableSemaphore extends Semaphore {
+        private int size = 0;
+
+        ResizableSemaphore() {
+            super(0);
+        }
+
+        synchronized void resize(int newSize) {
+            if (newSize > size) {
+                release(newSize - size);
+            } else if (newSize < size) {
+                // may go negative until held permits are released
+                reducePermits(size - newSize);
+            }
+            size = newSize;
+        }
+    }
+
+    private static void reject(HttpServletResponse resp, int status, long retryAfterSeconds, String message)
+            throws IOException {
+        LOG.debug("Rejected upload ({}): {}", status, message);
+        if (retryAfterSeconds > 0) {
+            resp.setHeader(RETRY_AFTER, Long.toString(retryAfterSeconds));
+        }
+        // the body is never read, so don't keep the connection around for it
+        resp.setHeader("Connection", "close");
+        resp.sendError(status, message);
+    }
+
+    private static long toRetrySeconds(long nanos) {
+        return Math.max(1L, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static int toPermits(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + PERMIT_BYTES - 1) / PERMIT_BYTES);
+    }
+}
@@ -6,13 +6,28 @@ import org.eclipse.jetty.util.log.Logger;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Wrapper for the app.properties file.
+ * Wrapper for the app.properties file.  Each instance is an immutable snapshot; {@link #getInstance()} returns the
+ * current one, which is replaced atomically by {@link #reload()} or, once {@link #startWatching()} is called,
+ * whenever the file changes.
  */
 public class AppProperties {
 
@@ -21,34 +36,178 @@ public class AppProperties {
     private static final String KEY_FIREFOX_DRIVER = "firefox_driver";
     private static final String KEY_CHROME_DRIVER = "chrome_driver";
     private static final String KEY_BROWSER = "browser";
+    private static final String KEY_MIN_THREADS = "server_min_threads";
+    private static final String KEY_MAX_THREADS = "server_max_threads";
+    private static final String KEY_MAX_FILE_SIZE = "server_max_file_size";
+    private static final String KEY_MAX_REQUEST_SIZE = "server_max_request_size";
+    private static final String KEY_MAX_IN_FLIGHT_BYTES = "server_max_in_flight_bytes";
+    private static final String KEY_RATE_LIMIT = "server_rate_limit";
+    private static final String KEY_RATE_BURST = "server_rate_burst";
+    private static final String KEY_FILE_SIZE_THRESHOLD = "server_file_size_threshold";
+    private static final String KEY_COPY_BUFFER_SIZE = "server_copy_buffer_size";
+    private static final String KEY_RESPONSE_MODE = "server_response_mode";
+    private static final String KEY_MAX_TRACKED_CLIENTS = "server_max_tracked_clients";
+    private static final long WATCH_SETTLE_MILLIS = 100L;
 
-    private static AppProperties INSTANCE = null;
+    private static final AtomicReference<AppProperties> INSTANCE = new AtomicReference<>();
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+    private static WatchService watchService = null;
+
+    /**
+     * Notified with the new snapshot after each successful reload.
+     */
+    public interface Listener {
+        void reloaded(AppProperties properties);
+    }
 
     /**
      * Factory method.
      *
-     * @return the #AppProperties singleton
+     * @return the current #AppProperties snapshot
      * @throws IOException Thrown when file not found or invalid properties file.
      */
     public static AppProperties getInstance() throws IOException {
-        if (INSTANCE == null) {
-            Path propFile = Paths.get(PROPERTIES_FILE);
-            if (!Files.exists(propFile)) {
-                throw new FileNotFoundException(PROPERTIES_FILE);
+        AppProperties instance = INSTANCE.get();
+        if (instance == null) {
+            synchronized (AppProperties.class) {
+                instance = INSTANCE.get();
+                if (instance == null) {
+                    instance = load();
+                    INSTANCE.set(instance);
+                }
             }
-            Properties props = new Properties();
-            try (InputStream in = Files.newInputStream(propFile)) {
-                props.load(in);
+        }
+        return instance;
+    }
+
+    /**
+     * Re-reads the properties file and swaps in the new snapshot.  If the file is missing or invalid, the current
+     * snapshot is kept.
+     *
+     * @return the new snapshot
+     * @throws IOException Thrown when file not found or invalid properties file.
+     */
+    public static AppProperties reload() throws IOException {
+        AppProperties instance = load();
+        INSTANCE.set(instance);
+        for (Listener listener : LISTENERS) {
+            try {
+                listener.reloaded(instance);
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to apply reloaded " + PROPERTIES_FILE, e);
             }
-            INSTANCE = new AppProperties(props);
         }
-        return INSTANCE;
+        return instance;
+    }
+
+    public static synchronized void addListener(Listener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Removes a listener, and stops watching the file once no listeners remain.
+     *
+     * @param listener
+     * @throws IOException
+     */
+    public static synchronized void removeListener(Listener listener) throws IOException {
+        if (LISTENERS.remove(listener) && LISTENERS.isEmpty()) {
+            stopWatching();
+        }
+    }
+
+    /**
+     * Starts a daemon thread that reloads the properties file whenever it changes, until {@link #stopWatching()}
+     * or the last listener is removed.  Does nothing if already watching.
+     *
+     * @throws IOException
+     */
+    public static synchronized void startWatching() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        final Path propFile = Paths.get(PROPERTIES_FILE).toAbsolutePath();
+        final WatchService watcher = FileSystems.getDefault().newWatchService();
+        propFile.getParent().register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = watcher.take();
+                        boolean changed = pollChanged(key, propFile);
+                        // editors often write in several steps; let them settle before reading
+                        while ((key = watcher.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                            changed |= pollChanged(key, propFile);
+                        }
+                        if (changed) {
+                            try {
+                                reload();
+                                LOG.info("Reloaded {}", PROPERTIES_FILE);
+                            } catch (IOException e) {
+                                LOG.warn("Keeping previous " + PROPERTIES_FILE, e);
+                            }
+                        }
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    // stopped
+                }
+            }
+        }, "AppProperties-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        watchService = watcher;
+    }
+
+    public static synchronized boolean isWatching() {
+        return watchService != null;
+    }
+
+    /**
+     * Stops reloading the properties file on change.
+     *
+     * @throws IOException
+     */
+    public static synchronized void stopWatching() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+    }
+
+    private static boolean pollChanged(WatchKey key, Path propFile) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (propFile.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private static AppProperties load() throws IOException {
+        Path propFile = Paths.get(PROPERTIES_FILE);
+        if (!Files.exists(propFile)) {
+            throw new FileNotFoundException(PROPERTIES_FILE);
+        }
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(propFile)) {
+            props.load(in);
+        }
+        return new AppProperties(props);
     }
 
-    private final Properties props;
+    private final Map<String, String> props;
 
     private AppProperties(Properties props) throws IOException {
-        this.props = props;
+        Map<String, String> copy = new HashMap<>();
+        for (String key : props.stringPropertyNames()) {
+            copy.put(key, props.getProperty(key).trim());
+        }
+        this.props = Collections.unmodifiableMap(copy);
+        validate();
     }
 
     public String getFirefoxDriver() {
@@ -63,7 +222,103 @@ public class AppProperties {
         return Browser.fromString(prop(KEY_BROWSER));
     }
 
+    ///////////////////////////////////////////////
+    // server tuning; unset keys return the default
+    ///////////////////////////////////////////////
+
+    public int getMinThreads(int defaultValue) {
+        return intProp(KEY_MIN_THREADS, defaultValue);
+    }
+
+    public int getMaxThreads(int defaultValue) {
+        return intProp(KEY_MAX_THREADS, defaultValue);
+    }
+
+    public long getMaxFileSize(long defaultValue) {
+        return longProp(KEY_MAX_FILE_SIZE, defaultValue);
+    }
+
+    public long getMaxRequestSize(long defaultValue) {
+        return longProp(KEY_MAX_REQUEST_SIZE, defaultValue);
+    }
+
+    public long getMaxInFlightBytes(long defaultValue) {
+        return longProp(KEY_MAX_IN_FLIGHT_BYTES, defaultValue);
+    }
+
+    public double getRateLimit(double defaultValue) {
+        return doubleProp(KEY_RATE_LIMIT, defaultValue);
+    }
+
+    public int getRateBurst(int defaultValue) {
+        return intProp(KEY_RATE_BURST, defaultValue);
+    }
+
+    public int getFileSizeThreshold(int defaultValue) {
+        return intProp(KEY_FILE_SIZE_THRESHOLD, defaultValue);
+    }
+
+    public int getCopyBufferSize(int defaultValue) {
+        return intProp(KEY_COPY_BUFFER_SIZE, defaultValue);
+    }
+
+    public ResponseMode getResponseMode(ResponseMode defaultValue) {
+        String value = prop(KEY_RESPONSE_MODE);
+        return value == null || value.isEmpty() ? defaultValue : ResponseMode.fromString(value);
+    }
+
+    public int getMaxTrackedClients(int defaultValue) {
+        return intProp(KEY_MAX_TRACKED_CLIENTS, defaultValue);
+    }
+
+    // fail the load, rather than a later getter or the server, so a bad edit never replaces a good snapshot;
+    // unset keys pass, and JettyUploadServer checks them again combined with the builder's values
+    private void validate() throws IOException {
+        try {
+            int minThreads = getMinThreads(1);
+            int maxThreads = getMaxThreads(Integer.MAX_VALUE);
+            require(minThreads > 0 && minThreads <= maxThreads, KEY_MIN_THREADS + " must be from 1 to "
+                    + KEY_MAX_THREADS);
+            long maxFileSize = getMaxFileSize(-1L);
+            long maxRequestSize = getMaxRequestSize(-1L);
+            require(maxFileSize >= -1L, KEY_MAX_FILE_SIZE + " must be -1 (unlimited) or more");
+            require(maxRequestSize >= -1L, KEY_MAX_REQUEST_SIZE + " must be -1 (unlimited) or more");
+            require(maxFileSize <= 0 || maxRequestSize <= 0 || maxFileSize <= maxRequestSize,
+                    KEY_MAX_FILE_SIZE + " exceeds " + KEY_MAX_REQUEST_SIZE);
+            require(getMaxInFlightBytes(-1L) >= -1L, KEY_MAX_IN_FLIGHT_BYTES + " must be -1 (unlimited) or more");
+            require(getRateLimit(0d) >= 0d, KEY_RATE_LIMIT + " must not be negative");
+            require(getRateBurst(1) > 0, KEY_RATE_BURST + " must be positive");
+            require(getFileSizeThreshold(0) >= 0, KEY_FILE_SIZE_THRESHOLD + " must not be negative");
+            require(getCopyBufferSize(0) >= 0, KEY_COPY_BUFFER_SIZE + " must not be negative");
+            getResponseMode(null);
+            require(getMaxTrackedClients(1) > 0, KEY_MAX_TRACKED_CLIENTS + " must be positive");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid " + PROPERTIES_FILE + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void require(boolean valid, String message) {
+        if (!valid) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    private int intProp(String key, int defaultValue) {
+        String value = prop(key);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    private long longProp(String key, long defaultValue) {
+        String value = prop(key);
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value);
+    }
+
+    private double doubleProp(String key, double defaultValue) {
+        String value = prop(key);
+        return value == null || value.isEmpty() ? defaultValue : Double.parseDouble(value);
+    }
+
     private String prop(String key) {
-        return props.getProperty(key);
+        return props.get(key);
     }
 }
@@ -3,9 +3,15 @@ package human.joecoder.imageblob;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.eclipse.jetty.io.ByteBufferPool;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Base64 utility methods
@@ -14,6 +20,14 @@ import java.io.InputStream;
  */
 public class Base64Utils {
 
+    // thread-safe; unchunked like Base64.encodeBase64(byte[])
+    private static final Base64 CODEC = new Base64();
+    // multiple of 3, so only the last chunk of a file is padded; within the pool's bucket range
+    private static final int FILE_CHUNK_SIZE = 48 * 1024;
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte PAD = '=';
+
     /**
      * Dump the InputStream contents into a Base64 encoded String.
      *
@@ -39,4 +53,85 @@ public class Base64Utils {
         IOUtils.copy(inputStream, buffer);
         return Base64.encodeBase64(buffer.toByteArray());
     }
+
+    /**
+     * Encode the remaining bytes of a heap buffer without copying them out first.  The buffer's position is not
+     * modified.
+     *
+     * @param buffer
+     * @return
+     */
+    public static byte[] encodeBase64(ByteBuffer buffer) {
+        return CODEC.encode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Dump the file contents into a Base64 encoded byte buffer, reading in fixed-size chunks through a buffer
+     * from the given pool, so the pool serves files of any size.
+     *
+     * @param file
+     * @param bufferPool
+     * @return
+     * @throws IOException
+     */
+    public static byte[] encodeBase64(File file, ByteBufferPool bufferPool) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long encodedSize = (size + 2) / 3 * 4;
+            if (encodedSize > Integer.MAX_VALUE) {
+                throw new IOException("File too large to encode: " + file);
+            }
+            byte[] encoded = new byte[(int) encodedSize];
+            int encodedPosition = 0;
+            ByteBuffer buffer = bufferPool.acquire(FILE_CHUNK_SIZE, false);
+            try {
+                boolean eof = false;
+                while (!eof) {
+                    buffer.clear();
+                    buffer.limit(FILE_CHUNK_SIZE);
+                    // fill the whole chunk, as only the last may have a length that isn't a multiple of 3
+                    while (buffer.hasRemaining() && !eof) {
+                        eof = channel.read(buffer) == -1;
+                    }
+                    buffer.flip();
+                    if (encodedPosition + (buffer.remaining() + 2) / 3 * 4 > encoded.length) {
+                        throw new IOException("File grew while encoding: " + file);
+                    }
+                    encodedPosition = encodeChunk(buffer.array(), buffer.arrayOffset(), buffer.remaining(),
+                            encoded, encodedPosition);
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+            if (encodedPosition != encoded.length) {
+                throw new IOException("File shrank while encoding: " + file);
+            }
+            return encoded;
+        }
+    }
+
+    /**
+     * Encodes into an existing array; padded unless the length is a multiple of 3.
+     *
+     * @return the position after the encoded bytes
+     */
+    private static int encodeChunk(byte[] src, int offset, int length, byte[] dst, int position) {
+        int end = offset + length - length % 3;
+        int i = offset;
+        while (i < end) {
+            int bits = (src[i++] & 0xff) << 16 | (src[i++] & 0xff) << 8 | (src[i++] & 0xff);
+            dst[position++] = ALPHABET[bits >>> 18];
+            dst[position++] = ALPHABET[bits >>> 12 & 0x3f];
+            dst[position++] = ALPHABET[bits >>> 6 & 0x3f];
+            dst[position++] = ALPHABET[bits & 0x3f];
+        }
+        if (length % 3 != 0) {
+            int bits = (src[i] & 0xff) << 16 | (length % 3 == 2 ? (src[i + 1] & 0xff) << 8 : 0);
+            dst[position++] = ALPHABET[bits >>> 18];
+            dst[position++] = ALPHABET[bits >>> 12 & 0x3f];
+            dst[position++] = length % 3 == 2 ? ALPHABET[bits >>> 6 & 0x3f] : PAD;
+            dst[position++] = PAD;
+        }
+        return position;
+    }
 }
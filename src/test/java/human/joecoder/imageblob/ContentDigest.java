@@ -0,0 +1,93 @@
+package human.joecoder.imageblob;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A client-supplied content digest of the form {@code <algorithm>=<base64 digest>}, e.g.
+ * {@code SHA-256=47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=}.  The plugin sends one per uploaded part in the
+ * form field named {@link #PARAM_PREFIX} followed by the part name.
+ */
+public class ContentDigest {
+
+    public static final String PARAM_PREFIX = "digest.";
+
+    /**
+     * Parse a digest form field value.
+     *
+     * @param value
+     * @return the digest
+     * @throws IllegalArgumentException if malformed or the algorithm is unsupported
+     */
+    public static ContentDigest parse(String value) {
+        int separator = value.indexOf('=');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Malformed digest: " + value);
+        }
+        String algorithm = value.substring(0, separator).trim();
+        byte[] expected = Base64.decodeBase64(value.substring(separator + 1).trim());
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);
+        }
+        return new ContentDigest(algorithm, expected);
+    }
+
+    private final String algorithm;
+    private final byte[] expected;
+
+    private ContentDigest(String algorithm, byte[] expected) {
+        this.algorithm = algorithm;
+        this.expected = expected;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * A fresh digest to be updated while the content streams through.
+     *
+     * @return
+     */
+    public MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // checked by parse()
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Whether the completed digest matches the client-supplied one.
+     *
+     * @param messageDigest a digest from {@link #newMessageDigest()} that has seen all of the content
+     * @return
+     */
+    public boolean matches(MessageDigest messageDigest) {
+        return MessageDigest.isEqual(expected, messageDigest.digest());
+    }
+
+    /**
+     * Whether the remaining bytes of the buffer match the client-supplied digest.  The buffer's position is not
+     * modified.
+     *
+     * @param buffer
+     * @return
+     */
+    public boolean matches(ByteBuffer buffer) {
+        MessageDigest messageDigest = newMessageDigest();
+        messageDigest.update(buffer.duplicate());
+        return matches(messageDigest);
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + "=" + Base64.encodeBase64String(expected);
+    }
+}
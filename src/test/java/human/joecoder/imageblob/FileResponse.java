@@ -9,11 +9,13 @@ import java.util.Map;
  */
 public class FileResponse {
 
+    private String id;
     private String fileName;
     private String fileType;
     private Map<String, String[]> params;
     private byte[] base64;
     private long length;
+    private String digest;
 
     /**
      * Default Constructor.
@@ -22,6 +24,19 @@ public class FileResponse {
         // for bean construction
     }
 
+    /**
+     * The stored upload's id, for retrieval with GET.
+     *
+     * @return
+     */
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
     public Map<String, String[]> getParams() {
         return params;
     }
@@ -61,4 +76,17 @@ public class FileResponse {
     public void setLength(long length) {
         this.length = length;
     }
-}
\ No newline at end of file
+
+    /**
+     * The client-supplied digest, present only if it was verified against the stored bytes.
+     *
+     * @return
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+}
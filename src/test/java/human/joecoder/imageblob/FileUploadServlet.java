@@ -1,9 +1,10 @@
 package human.joecoder.imageblob;
 
-import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
 import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
@@ -12,7 +13,25 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.regex.Pattern;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * File Upload Servlet for unit testing.
@@ -23,11 +42,30 @@ import java.util.*;
 @SuppressWarnings("serial")
 public class FileUploadServlet extends HttpServlet {
 
-    // thread-safe objects
-    private static final ObjectMapper mapper = new ObjectMapper();
-    private static final ObjectWriter writer = mapper.writer(new DefaultPrettyPrinter());
+    private static final Logger LOG = Log.getLog();
+    private static final long PERSIST_SHUTDOWN_SECONDS = 10L;
+    // bounds the heap held by the persist backlog to this many parts of up to the threshold each
+    private static final int MAX_PENDING_PERSISTS = 64;
+    private static final long MAX_EXPIRY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final int DEFAULT_COPY_BUFFER_SIZE = 64 * 1024;
+    private static final String FILE_SUFFIX = ".tmp";
+    private static final String PARTIAL_FILE_SUFFIX = ".partial";
+    private static final String PARAM_ID = "id";
+    private static final Pattern UPLOAD_ID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
 
     private File uploadDirectory;
+    private ByteBufferPool bufferPool;
+    private UploadCluster cluster;
+    private HttpForwarder forwarder;
+    // live settings, see JettyUploadServer
+    private volatile long fileSizeThreshold;
+    private volatile int copyBufferSize = DEFAULT_COPY_BUFFER_SIZE;
+    private volatile ResponseMode responseMode = ResponseMode.PRETTY;
+    private ExecutorService persister;
+    private ScheduledExecutorService expirer;
+    // background writes not yet on disk, awaited by GETs for the same id
+    private final ConcurrentMap<String, Future<?>> pendingPersists = new ConcurrentHashMap<>();
+    private final ConcurrentMap<HttpServletRequest, String> inFlightUploads = new ConcurrentHashMap<>();
 
     /**
      * Constructor.
@@ -35,52 +73,468 @@ public class FileUploadServlet extends HttpServlet {
      * @param uploadDir if null, uses the system's temporary-file directory.
      */
     public FileUploadServlet(File uploadDir) {
+        this(uploadDir, 0L, new StatisticsByteBufferPool(-1L));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param uploadDir         if null, uses the system's temporary-file directory.
+     * @param fileSizeThreshold parts up to this size are processed in memory and persisted in the background;
+     *                          should match the multipart config so the container doesn't spool them either.
+     * @param bufferPool        pool for all copy and encoding buffers; normally shared with the connector.
+     */
+    public FileUploadServlet(File uploadDir, long fileSizeThreshold, ByteBufferPool bufferPool) {
+        this(uploadDir, fileSizeThreshold, bufferPool, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param uploadDir         if null, uses the system's temporary-file directory; ignored when clustered.
+     * @param fileSizeThreshold parts up to this size are processed in memory and, unless clustered, persisted in
+     *                          the background; should match the multipart config so the container doesn't spool
+     *                          them either.
+     * @param bufferPool        pool for all copy and encoding buffers; normally shared with the connector.
+     * @param cluster           if not null, uploads are stored in their owner's partition of the shared storage,
+     *                          and reads forwarded to the owner.
+     */
+    public FileUploadServlet(File uploadDir, long fileSizeThreshold, ByteBufferPool bufferPool,
+                             UploadCluster cluster) {
         this.uploadDirectory = uploadDir;
+        this.fileSizeThreshold = fileSizeThreshold;
+        this.bufferPool = bufferPool;
+        this.cluster = cluster;
+        if (cluster != null) {
+            this.forwarder = new HttpForwarder(bufferPool);
+        }
+    }
+
+    /**
+     * Parts up to this size are processed in memory.  May be changed while running.
+     *
+     * @param fileSizeThreshold
+     */
+    public void setFileSizeThreshold(long fileSizeThreshold) {
+        this.fileSizeThreshold = fileSizeThreshold;
+    }
+
+    /**
+     * Size of the pooled buffer used to spool large parts to disk.  May be changed while running.
+     *
+     * @param copyBufferSize if not positive, uses the default
+     */
+    public void setCopyBufferSize(int copyBufferSize) {
+        this.copyBufferSize = copyBufferSize > 0 ? copyBufferSize : DEFAULT_COPY_BUFFER_SIZE;
+    }
+
+    /**
+     * JSON formatting of the response.  May be changed while running.
+     *
+     * @param responseMode
+     */
+    public void setResponseMode(ResponseMode responseMode) {
+        this.responseMode = responseMode;
+    }
+
+    /**
+     * Describes the uploads currently being processed, e.g. to report those cut off by shutdown.
+     *
+     * @return
+     */
+    public List<String> getInFlightUploads() {
+        return new ArrayList<>(inFlightUploads.values());
+    }
+
+    @Override
+    public void init() throws ServletException {
+        // created regardless of the threshold, which may be raised later; the thread starts on first use
+        persister = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_PERSISTS));
+        if (cluster != null) {
+            long interval = Math.min(cluster.getUploadRetention(), MAX_EXPIRY_INTERVAL_MILLIS);
+            expirer = Executors.newSingleThreadScheduledExecutor();
+            expirer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    int expired = cluster.expireUploads();
+                    if (expired > 0) {
+                        LOG.info("Expired {} uploads", expired);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (expirer != null) {
+            expirer.shutdownNow();
+        }
+        if (persister != null) {
+            persister.shutdown();
+            try {
+                if (!persister.awaitTermination(PERSIST_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                    LOG.warn("Background persistence did not finish; {} files dropped",
+                            persister.shutdownNow().size());
+                }
+            } catch (InterruptedException e) {
+                persister.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Serves a stored upload by the id returned from the upload.  When clustered, forwards to the owning node, or
+     * serves from the shared storage if the owner has left or can't be reached.
+     */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        String id = req.getParameter(PARAM_ID);
+        if (id == null || !(cluster != null ? cluster.isUploadId(id) : UPLOAD_ID.matcher(id).matches())) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Upload id required");
+            return;
+        }
+        if (cluster != null && req.getHeader(UploadCluster.FORWARDED_HEADER) == null && !cluster.isLocal(id)) {
+            String owner = cluster.ownerOf(id);
+            if (owner != null && forwarder.tryForward(req, resp, owner, cluster.forwardedHeaders())) {
+                return;
+            }
+            if (owner != null) {
+                LOG.warn("Owner {} of upload {} unreachable; serving from shared storage", owner, id);
+            }
+        }
+        Future<?> pending = pendingPersists.get(id);
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for upload " + id, e);
+            } catch (ExecutionException e) {
+                // logged by the persister; the file check below reports it missing
+            }
+        }
+        File file = new File(directoryFor(id), id + FILE_SUFFIX);
+        if (!file.isFile()) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No upload " + id);
+            return;
+        }
+        resp.setContentType("application/octet-stream");
+        resp.setContentLengthLong(file.length());
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            // streams through the connector's pooled buffers
+            ((HttpOutput) resp.getOutputStream()).sendContent(channel);
+        }
     }
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
-        Collection<Part> parts = req.getParts();
+        inFlightUploads.put(req, String.format("%s from %s (%d bytes, started %tT)",
+                req.getRequestURI(), req.getRemoteAddr(), req.getContentLengthLong(), new Date()));
+        try {
+            upload(req, resp);
+        } finally {
+            inFlightUploads.remove(req);
+        }
+    }
+
+    private void upload(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        StageTimings timings = new StageTimings();
+        req.setAttribute(StageTimings.ATTRIBUTE, timings);
+        Collection<Part> parts;
+        long start = System.nanoTime();
+        try {
+            parts = req.getParts();
+            timings.addParse(System.nanoTime() - start);
+        } catch (IllegalStateException e) {
+            if (isSizeLimitExceeded(e)) {
+                // max file size, or max request size where the admission filter couldn't tell from Content-Length
+                resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+                return;
+            }
+            throw e;
+        }
         if (!parts.isEmpty()) {
             List<FileResponse> files = new ArrayList<>(parts.size());
-            for (Part part : parts) {
-                if (part != null && part.getContentType() != null) {
-                    String fileName = getFilename(part);
-                    File file = writeFile(fileName, part.getInputStream());
-                    FileResponse fileResponse = new FileResponse();
-                    fileResponse.setFileName(fileName);
-                    fileResponse.setFileType(part.getContentType());
-                    fileResponse.setLength(file.length());
-                    fileResponse.setParams(req.getParameterMap());
-                    try (FileInputStream fis = new FileInputStream(file)) {
-                        fileResponse.setBase64(Base64Utils.encodeBase64(fis));
+            // nothing is stored until every part is verified, so a rejected request leaves no uploads behind
+            List<StagedUpload> staged = new ArrayList<>(parts.size());
+            int committed = 0;
+            try {
+                for (Part part : parts) {
+                    if (part != null && part.getContentType() != null) {
+                        String fileName = getFilename(part);
+                        String id = cluster != null ? cluster.newUploadId() : UUID.randomUUID().toString();
+                        ContentDigest digest;
+                        try {
+                            digest = getDigest(req, part);
+                        } catch (IllegalArgumentException e) {
+                            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                            return;
+                        }
+                        FileResponse fileResponse = new FileResponse();
+                        fileResponse.setId(id);
+                        fileResponse.setFileName(fileName);
+                        fileResponse.setFileType(part.getContentType());
+                        fileResponse.setParams(req.getParameterMap());
+                        start = System.nanoTime();
+                        if (part.getSize() >= 0 && part.getSize() <= fileSizeThreshold) {
+                            // fast path: small part is already in memory, keep it off the filesystem
+                            ByteBuffer buffer = readPart(part);
+                            staged.add(new StagedUpload(id, fileName, buffer));
+                            if (digest != null && !digest.matches(buffer)) {
+                                rejectDigest(resp, fileName, digest);
+                                return;
+                            }
+                            fileResponse.setLength(buffer.remaining());
+                            timings.addStore(System.nanoTime() - start);
+                            start = System.nanoTime();
+                            fileResponse.setBase64(Base64Utils.encodeBase64(buffer));
+                            timings.addEncode(System.nanoTime() - start);
+                        } else {
+                            // verified in the same pass as the write, if there's a digest
+                            MessageDigest messageDigest = digest != null ? digest.newMessageDigest() : null;
+                            File partial;
+                            try (InputStream in = part.getInputStream()) {
+                                partial = writeFile(id, PARTIAL_FILE_SUFFIX, in, messageDigest);
+                            }
+                            staged.add(new StagedUpload(id, fileName, partial));
+                            if (digest != null && !digest.matches(messageDigest)) {
+                                rejectDigest(resp, fileName, digest);
+                                return;
+                            }
+                            fileResponse.setLength(partial.length());
+                            timings.addStore(System.nanoTime() - start);
+                            start = System.nanoTime();
+                            fileResponse.setBase64(Base64Utils.encodeBase64(partial, bufferPool));
+                            timings.addEncode(System.nanoTime() - start);
+                        }
+                        if (digest != null) {
+                            fileResponse.setDigest(digest.toString());
+                        }
+                        files.add(fileResponse);
+                        timings.addUpload();
                     }
-                    files.add(fileResponse);
+                }
+                start = System.nanoTime();
+                for (StagedUpload upload : staged) {
+                    commit(upload);
+                    committed++;
+                }
+                timings.addStore(System.nanoTime() - start);
+            } finally {
+                for (StagedUpload upload : staged.subList(committed, staged.size())) {
+                    discard(upload);
                 }
             }
             resp.setContentType("application/json");
             resp.setStatus(HttpServletResponse.SC_OK);
             Map<String, List<FileResponse>> filesMap = new HashMap<>(1);
             filesMap.put("files", files);
-            writer.writeValue(resp.getOutputStream(), filesMap);
+            start = System.nanoTime();
+            responseMode.getWriter().writeValue(resp.getOutputStream(), filesMap);
+            timings.addRespond(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A part held back from its id until the whole request is verified.
+     */
+    private static class StagedUpload {
+        final String id;
+        final String fileName;
+        // exactly one of these
+        final ByteBuffer buffer;
+        final File partial;
+
+        StagedUpload(String id, String fileName, ByteBuffer buffer) {
+            this.id = id;
+            this.fileName = fileName;
+            this.buffer = buffer;
+            this.partial = null;
+        }
+
+        StagedUpload(String id, String fileName, File partial) {
+            this.id = id;
+            this.fileName = fileName;
+            this.buffer = null;
+            this.partial = partial;
+        }
+    }
+
+    /**
+     * Makes a staged part available under its id.  Takes ownership of an in-memory part's buffer.
+     */
+    private void commit(StagedUpload upload) throws IOException {
+        if (upload.partial != null) {
+            commitFile(upload.partial);
+        } else if (cluster != null) {
+            // other nodes can't see a pending write, so it must be on disk before the id is out
+            try {
+                writeFile(upload.id, upload.buffer);
+            } finally {
+                bufferPool.release(upload.buffer);
+            }
+        } else {
+            persistLater(upload.id, upload.fileName, upload.buffer);
         }
     }
 
-    private File writeFile(String filename, InputStream inputStream) throws IOException {
-        File file = null;
-        if (uploadDirectory != null) {
-            file = File.createTempFile(filename, null, uploadDirectory);
+    private void discard(StagedUpload upload) {
+        if (upload.partial != null) {
+            try {
+                Files.deleteIfExists(upload.partial.toPath());
+            } catch (IOException e) {
+                LOG.warn("Failed to delete " + upload.partial, e);
+            }
         } else {
-            file = File.createTempFile(filename, null);
+            bufferPool.release(upload.buffer);
+        }
+    }
+
+    /**
+     * Jetty's multipart parser reports its size limits as IllegalStateException, as it does some other failures;
+     * only the message tells them apart ("Request exceeds maxRequestSize", "Multipart Mime part ... exceeds max
+     * filesize").
+     */
+    private static boolean isSizeLimitExceeded(IllegalStateException e) {
+        String message = e.getMessage();
+        return message != null && message.contains(" exceeds max");
+    }
+
+    private ByteBuffer readPart(Part part) throws IOException {
+        int size = (int) part.getSize();
+        ByteBuffer buffer = bufferPool.acquire(size, false);
+        try (InputStream in = part.getInputStream()) {
+            IOUtils.readFully(in, buffer.array(), buffer.arrayOffset(), size);
+        } catch (IOException e) {
+            bufferPool.release(buffer);
+            throw e;
         }
-        file.deleteOnExit();
+        buffer.limit(size);
+        buffer.position(0);
+        return buffer;
+    }
+
+    private File writeFile(String id, String suffix, InputStream inputStream, MessageDigest messageDigest)
+            throws IOException {
+        File file = createFile(id, suffix);
+        int bufferSize = copyBufferSize;
+        ByteBuffer buffer = bufferPool.acquire(bufferSize, false);
         try (FileOutputStream outputStream = new FileOutputStream(file)) {
-            IOUtils.copy(inputStream, outputStream);
+            byte[] bytes = buffer.array();
+            int offset = buffer.arrayOffset();
+            int length = Math.min(buffer.capacity(), bufferSize);
+            int n;
+            while ((n = inputStream.read(bytes, offset, length)) != -1) {
+                outputStream.write(bytes, offset, n);
+                if (messageDigest != null) {
+                    messageDigest.update(bytes, offset, n);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        } finally {
+            bufferPool.release(buffer);
         }
         return file;
     }
 
+    private File writeFile(String id, ByteBuffer buffer) throws IOException {
+        File file = createFile(id, FILE_SUFFIX);
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        return file;
+    }
+
+    private File createFile(String id, String suffix) throws IOException {
+        File file = new File(directoryFor(id), id + suffix);
+        if (!file.createNewFile()) {
+            throw new IOException("Upload already exists: " + file);
+        }
+        deleteOnExit(file);
+        return file;
+    }
+
+    /**
+     * Standalone uploads are scratch files of this process.  Shared storage is left to its owner's expiry instead,
+     * as this process exiting must not delete uploads other nodes still serve.
+     */
+    private void deleteOnExit(File file) {
+        if (cluster == null) {
+            file.deleteOnExit();
+        }
+    }
+
+    private File directoryFor(String id) {
+        if (cluster != null) {
+            return cluster.directoryFor(id);
+        }
+        return uploadDirectory != null ? uploadDirectory : new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    private File commitFile(File partial) throws IOException {
+        String name = partial.getName();
+        File file = new File(partial.getParentFile(),
+                name.substring(0, name.length() - PARTIAL_FILE_SUFFIX.length()) + FILE_SUFFIX);
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        deleteOnExit(file);
+        return file;
+    }
+
+    private static ContentDigest getDigest(HttpServletRequest req, Part part) {
+        String value = req.getParameter(ContentDigest.PARAM_PREFIX + part.getName());
+        return value == null ? null : ContentDigest.parse(value);
+    }
+
+    private static void rejectDigest(HttpServletResponse resp, String filename, ContentDigest digest)
+            throws IOException {
+        LOG.warn("Digest mismatch for {} ({})", filename, digest.getAlgorithm());
+        resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Digest mismatch: " + filename);
+    }
+
+    /**
+     * Writes the buffer in the background, or on the calling thread when the backlog is full so that a slow disk
+     * pushes back on uploads instead of piling their bytes up in memory.  Until written, the id is pending so
+     * that a GET waits for it.
+     */
+    private void persistLater(final String id, final String filename, final ByteBuffer buffer) {
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeFile(id, buffer);
+                } catch (IOException e) {
+                    LOG.warn("Failed to persist " + filename, e);
+                } finally {
+                    bufferPool.release(buffer);
+                    pendingPersists.remove(id);
+                }
+            }
+        }, null);
+        pendingPersists.put(id, task);
+        try {
+            persister.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (persister.isShutdown()) {
+                pendingPersists.remove(id);
+                task.cancel(false);
+                bufferPool.release(buffer);
+                LOG.warn("Shutting down; not persisting " + filename);
+            } else {
+                task.run();
+            }
+        }
+    }
+
     private static String getFilename(Part part) {
         String retval = null;
         for (String contentDisposition : part.getHeader("content-disposition").split(";")) {
@@ -0,0 +1,73 @@
+package human.joecoder.imageblob;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring.  Each node is placed at several virtual points so keys spread evenly, and adding or
+ * removing a node only moves the keys adjacent to its points.
+ */
+public class HashRing {
+
+    private static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param nodes the node names
+     */
+    public HashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param nodes        the node names
+     * @param virtualNodes points per node
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one node required.");
+        }
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * The node owning the given key: the first point at or after the key's hash, wrapping around.
+     *
+     * @param key
+     * @return
+     */
+    public String nodeFor(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static long hash(String key) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE is required to provide MD5
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = md5.digest(key.getBytes(StandardCharsets.UTF_8));
+        long hash = 0L;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+}
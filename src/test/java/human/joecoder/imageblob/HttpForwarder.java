@@ -0,0 +1,183 @@
+package human.joecoder.imageblob;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Minimal HTTP reverse proxy: replays a servlet request against another server and streams the response back.
+ * Connections are reused by {@link HttpURLConnection}'s keep-alive cache.  Connecting and each read from the
+ * target are bounded by timeouts, so that a stalled target can't hold request threads indefinitely.
+ */
+public class HttpForwarder {
+
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    // hop-by-hop headers, plus those HttpURLConnection manages itself
+    private static final Set<String> SKIPPED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailer",
+            "transfer-encoding", "upgrade", "host", "content-length"));
+
+    private final ByteBufferPool bufferPool;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    /**
+     * Constructor, with default timeouts.
+     *
+     * @param bufferPool pool for the body copy buffers
+     */
+    public HttpForwarder(ByteBufferPool bufferPool) {
+        this(bufferPool, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bufferPool           pool for the body copy buffers
+     * @param connectTimeoutMillis limit on connecting to the target
+     * @param readTimeoutMillis    limit on each read of the target's response
+     */
+    public HttpForwarder(ByteBufferPool bufferPool, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.bufferPool = bufferPool;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Forwards the request to the same path and query on the target server.  Responds with 502 if the target
+     * can't be reached or fails, or 504 if it doesn't respond within the read timeout.
+     *
+     * @param req
+     * @param resp
+     * @param targetBaseUrl e.g. {@code http://localhost:8081}
+     * @param extraHeaders  added to the forwarded request
+     * @throws IOException
+     */
+    public void forward(HttpServletRequest req, HttpServletResponse resp, String targetBaseUrl,
+                        Map<String, String> extraHeaders) throws IOException {
+        if (!tryForward(req, resp, targetBaseUrl, extraHeaders)) {
+            resp.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Forward to " + targetBaseUrl + " failed");
+        }
+    }
+
+    /**
+     * As {@link #forward}, but leaves the response untouched if the target can't be connected to, so that the
+     * caller may handle the request some other way.
+     *
+     * @param req
+     * @param resp
+     * @param targetBaseUrl e.g. {@code http://localhost:8081}
+     * @param extraHeaders  added to the forwarded request
+     * @return false if the target couldn't be connected to
+     * @throws IOException
+     */
+    public boolean tryForward(HttpServletRequest req, HttpServletResponse resp, String targetBaseUrl,
+                              Map<String, String> extraHeaders) throws IOException {
+        String query = req.getQueryString();
+        URL url = new URL(targetBaseUrl + req.getRequestURI() + (query != null ? "?" + query : ""));
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setRequestMethod(req.getMethod());
+            conn.setInstanceFollowRedirects(false);
+            conn.setUseCaches(false);
+            conn.setConnectTimeout(connectTimeoutMillis);
+            conn.setReadTimeout(readTimeoutMillis);
+            for (String name : Collections.list(req.getHeaderNames())) {
+                if (!SKIPPED_HEADERS.contains(name.toLowerCase())) {
+                    Enumeration<String> values = req.getHeaders(name);
+                    while (values.hasMoreElements()) {
+                        conn.addRequestProperty(name, values.nextElement());
+                    }
+                }
+            }
+            for (Map.Entry<String, String> header : extraHeaders.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            long contentLength = req.getContentLengthLong();
+            boolean hasBody = contentLength > 0 || req.getHeader("Transfer-Encoding") != null;
+            if (hasBody) {
+                conn.setDoOutput(true);
+                if (contentLength >= 0) {
+                    conn.setFixedLengthStreamingMode(contentLength);
+                } else {
+                    conn.setChunkedStreamingMode(COPY_BUFFER_SIZE);
+                }
+            }
+            try {
+                conn.connect();
+            } catch (IOException e) {
+                return false;
+            }
+            if (hasBody) {
+                try (OutputStream out = conn.getOutputStream()) {
+                    copy(req.getInputStream(), out);
+                }
+            }
+
+            int status = conn.getResponseCode();
+            resp.setStatus(status);
+            for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+                String name = header.getKey();
+                // the null key is the status line
+                if (name != null && !SKIPPED_HEADERS.contains(name.toLowerCase())) {
+                    for (String value : header.getValue()) {
+                        resp.addHeader(name, value);
+                    }
+                }
+            }
+            InputStream in = status >= HttpURLConnection.HTTP_BAD_REQUEST ? conn.getErrorStream() : conn.getInputStream();
+            if (in != null) {
+                try {
+                    copy(in, resp.getOutputStream());
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            if (!resp.isCommitted()) {
+                resp.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Forward to " + targetBaseUrl + " timed out");
+            } else {
+                throw e;
+            }
+        } catch (IOException e) {
+            if (!resp.isCommitted()) {
+                resp.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Forward to " + targetBaseUrl + " failed");
+            } else {
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire(COPY_BUFFER_SIZE, false);
+        try {
+            byte[] bytes = buffer.array();
+            int offset = buffer.arrayOffset();
+            int n;
+            while ((n = in.read(bytes, offset, COPY_BUFFER_SIZE)) != -1) {
+                out.write(bytes, offset, n);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+}
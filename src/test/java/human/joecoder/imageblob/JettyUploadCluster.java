@@ -0,0 +1,318 @@
+package human.joecoder.imageblob;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.MultiException;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several {@link JettyUploadServer} nodes on consecutive localhost ports sharing an upload namespace, behind a
+ * round-robin front.  For validating horizontal scaling on a single box.
+ */
+public class JettyUploadCluster {
+
+    /**
+     * Test Driver.  Runs all nodes and the front in this JVM, or with a node index, only that node (start one
+     * process per index to run the nodes in separate processes).
+     *
+     * @param args [node count] [node index]
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Builder builder = JettyUploadCluster.Builder.newInstance()
+                .withNodes(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NODES)
+                .withResourceBase(new File("src/test/webapp"))
+                .withServletPath("/upload")
+                .withUploadDirectory(new File(System.getProperty("java.io.tmpdir"), "imageblob-cluster"))
+                .withDrainTimeout(JettyUploadServer.DEFAULT_DRAIN_SECONDS, TimeUnit.SECONDS);
+        if (args.length > 1) {
+            builder.withLocalNode(Integer.parseInt(args[1]));
+        }
+        final JettyUploadCluster cluster = builder.build();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cluster.stop();
+                } catch (Exception e) {
+                    LOG.warn("Failed to stop", e);
+                }
+            }
+        }, "JettyUploadCluster-shutdown"));
+        cluster.start().join();
+    }
+
+    private static final int DEFAULT_NODES = 3;
+    private static final int DEFAULT_FRONT_PORT = 8080;
+    private static final int DEFAULT_BASE_PORT = 8081;
+    private static final Logger LOG = Log.getLog();
+
+    /**
+     * Builder pattern.
+     */
+    public static class Builder {
+        public static Builder newInstance() {
+            return new Builder();
+        }
+
+        private int nodes = DEFAULT_NODES;
+        private int basePort = DEFAULT_BASE_PORT;
+        private int frontPort = DEFAULT_FRONT_PORT;
+        private int localNode = -1;
+        private String servletPath;
+        private File resourceBase;
+        private File uploadDirectory;
+        private long drainTimeout = 0L;
+
+        /**
+         * Number of nodes.  Optional; defaults to {@value #DEFAULT_NODES}.
+         *
+         * @param nodes
+         */
+        public Builder withNodes(int nodes) {
+            this.nodes = nodes;
+            return this;
+        }
+
+        /**
+         * Port of the first node; the others follow consecutively.  Optional; defaults to
+         * {@value #DEFAULT_BASE_PORT}.
+         *
+         * @param basePort
+         */
+        public Builder withBasePort(int basePort) {
+            this.basePort = basePort;
+            return this;
+        }
+
+        /**
+         * Port of the round-robin front.  Optional; defaults to {@value #DEFAULT_FRONT_PORT}.
+         *
+         * @param frontPort
+         */
+        public Builder withFrontPort(int frontPort) {
+            this.frontPort = frontPort;
+            return this;
+        }
+
+        /**
+         * Run only the node with this index, and no front.  Optional; defaults to running every node.
+         *
+         * @param localNode
+         */
+        public Builder withLocalNode(int localNode) {
+            this.localNode = localNode;
+            return this;
+        }
+
+        /**
+         * The servlet path suffix.  Required.
+         *
+         * @param servletPath
+         */
+        public Builder withServletPath(String servletPath) {
+            this.servletPath = servletPath;
+            return this;
+        }
+
+        /**
+         * The resource base to server.  Required.
+         *
+         * @param resourceBase
+         */
+        public Builder withResourceBase(File resourceBase) {
+            this.resourceBase = resourceBase;
+            return this;
+        }
+
+        /**
+         * The storage root shared by all nodes.  Required.
+         *
+         * @param uploadDirectory
+         */
+        public Builder withUploadDirectory(File uploadDirectory) {
+            this.uploadDirectory = uploadDirectory;
+            return this;
+        }
+
+        /**
+         * How long the front, then each node, waits for in-flight requests when stopped.  Optional; defaults to 0
+         * (stop immediately).
+         *
+         * @param drainTimeout
+         * @param unit
+         */
+        public Builder withDrainTimeout(long drainTimeout, TimeUnit unit) {
+            this.drainTimeout = unit.toMillis(drainTimeout);
+            return this;
+        }
+
+        public JettyUploadCluster build() throws Exception {
+            if (nodes < 1) {
+                throw new IllegalArgumentException("At least one node required.");
+            }
+            if (localNode >= nodes) {
+                throw new IllegalArgumentException("Node index out of range: " + localNode);
+            }
+            if (uploadDirectory == null) {
+                throw new IllegalArgumentException("Upload directory required.");
+            }
+            List<String> nodeUrls = new ArrayList<>(nodes);
+            for (int i = 0; i < nodes; i++) {
+                nodeUrls.add("http://localhost:" + (basePort + i));
+            }
+            List<JettyUploadServer> servers = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) {
+                if (localNode < 0 || localNode == i) {
+                    servers.add(JettyUploadServer.Builder.newInstance()
+                            .withPort(basePort + i)
+                            .withResourceBase(resourceBase)
+                            .withServletPath(servletPath)
+                            .withUploadDirectory(uploadDirectory)
+                            .withCluster(nodeUrls.get(i), nodeUrls)
+                            .withDrainTimeout(drainTimeout, TimeUnit.MILLISECONDS)
+                            .build());
+                }
+            }
+            Server front = null;
+            if (localNode < 0) {
+                front = new Server(frontPort);
+                ServletContextHandler context = new ServletContextHandler();
+                context.setContextPath("/");
+                context.addServlet(new ServletHolder("front", new RoundRobinServlet(nodeUrls)), "/*");
+                if (drainTimeout > 0) {
+                    // the graceful handler whose in-flight, proxied requests the front's stop waits for
+                    StatisticsHandler statisticsHandler = new StatisticsHandler();
+                    statisticsHandler.setHandler(context);
+                    front.setHandler(statisticsHandler);
+                } else {
+                    front.setHandler(context);
+                }
+                front.setStopTimeout(drainTimeout);
+            }
+            return new JettyUploadCluster(servers, front);
+        }
+    }
+
+    /**
+     * Forwards each request to the next node in turn.
+     */
+    @SuppressWarnings("serial")
+    private static class RoundRobinServlet extends HttpServlet {
+        private final List<String> nodeUrls;
+        private final AtomicInteger next = new AtomicInteger();
+        private final HttpForwarder forwarder = new HttpForwarder(new StatisticsByteBufferPool(-1L));
+
+        RoundRobinServlet(List<String> nodeUrls) {
+            this.nodeUrls = nodeUrls;
+        }
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            int index = (next.getAndIncrement() & Integer.MAX_VALUE) % nodeUrls.size();
+            forwarder.forward(req, resp, nodeUrls.get(index), Collections.<String, String>emptyMap());
+        }
+    }
+
+    private List<JettyUploadServer> servers;
+    private Server front;
+
+    private JettyUploadCluster(List<JettyUploadServer> servers, Server front) {
+        this.servers = servers;
+        this.front = front;
+    }
+
+    /**
+     * Starts the nodes, then the front.
+     *
+     * @throws Exception
+     */
+    public JettyUploadCluster start() throws Exception {
+        for (JettyUploadServer server : servers) {
+            server.start();
+        }
+        if (front != null) {
+            front.start();
+            LOG.info("Round-robin front over {} nodes", servers.size());
+        }
+        return this;
+    }
+
+    /**
+     * Joins the current thread to the front, or the single local node.
+     *
+     * @throws Exception
+     */
+    public JettyUploadCluster join() throws Exception {
+        if (front != null) {
+            front.join();
+        } else {
+            for (JettyUploadServer server : servers) {
+                server.join();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Stops the front, draining the uploads proxied through it while the nodes are still up, then stops the nodes
+     * in parallel, each draining its own.
+     */
+    public void stop() throws Exception {
+        if (front != null) {
+            try {
+                front.stop();
+            } catch (Exception e) {
+                if (!JettyUploadServer.isDrainTimeout(e)) {
+                    throw e;
+                }
+                LOG.warn("Front drain timed out");
+            }
+        }
+        ExecutorService stopper = Executors.newFixedThreadPool(servers.size());
+        try {
+            List<Future<Void>> stopped = new ArrayList<>(servers.size());
+            for (final JettyUploadServer server : servers) {
+                stopped.add(stopper.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        server.stop();
+                        return null;
+                    }
+                }));
+            }
+            MultiException failures = new MultiException();
+            for (Future<Void> future : stopped) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failures.add(e.getCause());
+                }
+            }
+            failures.ifExceptionThrow();
+        } finally {
+            stopper.shutdown();
+        }
+    }
+}
@@ -1,15 +1,31 @@
 package human.joecoder.imageblob;
 
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
 import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.MultiException;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.annotation.MultipartConfig;
 import java.io.File;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Simple Jetty server for testing jQuery Image Blob.
@@ -25,14 +41,17 @@ public class JettyUploadServer {
      * @throws Exception
      */
     public static void main(String[] args) throws Exception {
-        JettyUploadServer.Builder.newInstance()
+        JettyUploadServer server = JettyUploadServer.Builder.newInstance()
                 .withResourceBase(new File("src/test/webapp"))
                 .withServletPath("/upload")
-                .build()
-                .start().join();
+                .withDrainTimeout(DEFAULT_DRAIN_SECONDS, TimeUnit.SECONDS)
+                .build();
+        server.stopAtShutdown().start().join();
     }
 
     private static final int DEFAULT_PORT = 8080;
+    static final long DEFAULT_DRAIN_SECONDS = 30L;
+    private static final long DEFAULT_UPLOAD_RETENTION_MINUTES = 60L;
     private static final Logger LOG = Log.getLog();
 
     /**
@@ -47,6 +66,19 @@ public class JettyUploadServer {
         private String servletPath;
         private File resourceBase;
         private File uploadDirectory;
+        private long maxFileSize = -1L;
+        private long maxRequestSize = -1L;
+        private long maxInFlightBytes = -1L;
+        private double rateLimit = 0d;
+        private int rateBurst = 1;
+        private int fileSizeThreshold = 0;
+        private long maxPooledMemory = -1L;
+        private boolean appProperties = false;
+        private String nodeUrl;
+        private List<String> clusterNodes;
+        private long uploadRetention = TimeUnit.MINUTES.toMillis(DEFAULT_UPLOAD_RETENTION_MINUTES);
+        private File accessLogFile;
+        private long drainTimeout = 0L;
 
         /**
          * Start server on given port.  Optional; defaults to {@value #DEFAULT_PORT}.
@@ -88,6 +120,137 @@ public class JettyUploadServer {
             return this;
         }
 
+        /**
+         * The maximum size of a single uploaded file in bytes.  Optional; defaults to unlimited.
+         *
+         * @param maxFileSize
+         */
+        public Builder withMaxFileSize(long maxFileSize) {
+            this.maxFileSize = maxFileSize;
+            return this;
+        }
+
+        /**
+         * The maximum size of an upload request in bytes.  Requests declaring a larger Content-Length are rejected
+         * with 413 before the body is read.  Optional; defaults to unlimited.
+         *
+         * @param maxRequestSize
+         */
+        public Builder withMaxRequestSize(long maxRequestSize) {
+            this.maxRequestSize = maxRequestSize;
+            return this;
+        }
+
+        /**
+         * The maximum number of request bytes being uploaded concurrently.  Requests that would exceed it are
+         * rejected with 429 and Retry-After.  Optional; defaults to unlimited.
+         *
+         * @param maxInFlightBytes
+         */
+        public Builder withMaxInFlightBytes(long maxInFlightBytes) {
+            this.maxInFlightBytes = maxInFlightBytes;
+            return this;
+        }
+
+        /**
+         * Per-client token bucket rate limit.  Clients exceeding it are rejected with 429 and Retry-After.
+         * Optional; defaults to unlimited.
+         *
+         * @param requestsPerSecond sustained upload requests per second per client address
+         * @param burst             number of requests a client may issue back-to-back
+         */
+        public Builder withRateLimit(double requestsPerSecond, int burst) {
+            this.rateLimit = requestsPerSecond;
+            this.rateBurst = burst;
+            return this;
+        }
+
+        /**
+         * Uploaded files up to this many bytes are kept in memory by the container, encoded without touching the
+         * filesystem and persisted to the upload directory in the background; larger ones are spooled to disk by
+         * the container as they arrive.  Optional; defaults to 0, for which Jetty spools nothing and holds every
+         * part in memory whatever its size, while the servlet still writes each one to the upload directory.
+         *
+         * @param fileSizeThreshold
+         */
+        public Builder withFileSizeThreshold(int fileSizeThreshold) {
+            this.fileSizeThreshold = fileSizeThreshold;
+            return this;
+        }
+
+        /**
+         * The maximum heap and direct memory, each, retained by the buffer pool shared between the connector and
+         * the upload servlet.  Optional; defaults to Jetty's heuristic.
+         *
+         * @param maxPooledMemory
+         */
+        public Builder withMaxPooledMemory(long maxPooledMemory) {
+            this.maxPooledMemory = maxPooledMemory;
+            return this;
+        }
+
+        /**
+         * Apply the server_* keys of {@value AppProperties#PROPERTIES_FILE} over the builder's values, and re-apply
+         * them whenever the file changes.  Thread counts, limits, buffer sizes, response mode and cache sizes take
+         * effect without a restart; the pooled memory cap does not.  Optional; defaults to false.
+         *
+         * @param appProperties
+         */
+        public Builder withAppProperties(boolean appProperties) {
+            this.appProperties = appProperties;
+            return this;
+        }
+
+        /**
+         * Join a group of servers sharing an upload namespace; see {@link UploadCluster}.  The upload directory is
+         * then the storage root shared by all nodes, and is required; uploads are kept there across restarts until
+         * they expire.  Optional; defaults to standalone, where uploads are deleted when the JVM exits.
+         *
+         * @param nodeUrl      this server's base URL, e.g. {@code http://localhost:8081}
+         * @param clusterNodes base URLs of all servers in the group, including this one
+         */
+        public Builder withCluster(String nodeUrl, List<String> clusterNodes) {
+            this.nodeUrl = nodeUrl;
+            this.clusterNodes = clusterNodes;
+            return this;
+        }
+
+        /**
+         * When clustered, how long an upload is kept before its owning node deletes it.  Optional; defaults to
+         * {@value #DEFAULT_UPLOAD_RETENTION_MINUTES} minutes.
+         *
+         * @param uploadRetention
+         * @param unit
+         */
+        public Builder withUploadRetention(long uploadRetention, TimeUnit unit) {
+            this.uploadRetention = unit.toMillis(uploadRetention);
+            return this;
+        }
+
+        /**
+         * Write a JSON-lines access log to this file, rolled by size.  Logging never blocks requests; entries are
+         * dropped and counted if the writer falls behind.  Optional; defaults to no access log.
+         *
+         * @param accessLogFile
+         */
+        public Builder withAccessLog(File accessLogFile) {
+            this.accessLogFile = accessLogFile;
+            return this;
+        }
+
+        /**
+         * On stop, stop accepting connections and wait up to this long for in-flight requests to finish, using
+         * Jetty's graceful stop.  Uploads still in flight afterwards are logged and available from
+         * {@link #getUndrainedUploads()}.  Optional; defaults to 0 (stop immediately).
+         *
+         * @param drainTimeout
+         * @param unit
+         */
+        public Builder withDrainTimeout(long drainTimeout, TimeUnit unit) {
+            this.drainTimeout = unit.toMillis(drainTimeout);
+            return this;
+        }
+
         public JettyUploadServer build() throws Exception {
             if (servletPath == null) {
                 throw new IllegalArgumentException("Servlet path required.");
@@ -95,7 +258,33 @@ public class JettyUploadServer {
             if (resourceBase == null) {
                 throw new IllegalArgumentException("Resource base required.");
             }
-            return new JettyUploadServer(port, resourceBase, uploadDirectory, servletPath);
+            if (maxFileSize > 0 && maxRequestSize > 0 && maxFileSize > maxRequestSize) {
+                throw new IllegalArgumentException("Max file size exceeds max request size.");
+            }
+            UploadCluster cluster = null;
+            if (clusterNodes != null) {
+                if (uploadDirectory == null) {
+                    throw new IllegalArgumentException("Upload directory required for shared cluster storage.");
+                }
+                cluster = new UploadCluster(nodeUrl, clusterNodes, uploadDirectory, uploadRetention);
+            }
+            JettyUploadServer uploadServer = new JettyUploadServer(port, resourceBase, uploadDirectory, servletPath,
+                    new StatisticsByteBufferPool(maxPooledMemory));
+            uploadServer.maxFileSize = maxFileSize;
+            uploadServer.maxRequestSize = maxRequestSize;
+            uploadServer.maxInFlightBytes = maxInFlightBytes;
+            uploadServer.rateLimit = rateLimit;
+            uploadServer.rateBurst = rateBurst;
+            uploadServer.fileSizeThreshold = fileSizeThreshold;
+            uploadServer.appProperties = appProperties;
+            uploadServer.cluster = cluster;
+            uploadServer.drainTimeout = drainTimeout;
+            uploadServer.server.setStopTimeout(drainTimeout);
+            if (accessLogFile != null) {
+                uploadServer.accessLog = new AccessLog(accessLogFile);
+                uploadServer.server.setRequestLog(uploadServer.accessLog);
+            }
+            return uploadServer;
         }
     }
 
@@ -103,6 +292,31 @@ public class JettyUploadServer {
     private String servletPath;
     private File resourceBase;
     private File uploadDirectory;
+    private long maxFileSize = -1L;
+    private long maxRequestSize = -1L;
+    private long maxInFlightBytes = -1L;
+    private double rateLimit = 0d;
+    private int rateBurst = 1;
+    private int fileSizeThreshold = 0;
+    private StatisticsByteBufferPool bufferPool;
+    private boolean appProperties = false;
+    private UploadCluster cluster;
+    private AccessLog accessLog;
+    private long drainTimeout = 0L;
+    private Map<String, Long> startupTimings = Collections.emptyMap();
+    private volatile List<String> undrainedUploads = Collections.emptyList();
+    private QueuedThreadPool threadPool;
+    private int defaultMinThreads;
+    private int defaultMaxThreads;
+    private ServletHolder uploadServletHolder;
+    private FileUploadServlet uploadServlet;
+    private AdmissionControlFilter admissionControl;
+    private final AppProperties.Listener propertiesListener = new AppProperties.Listener() {
+        @Override
+        public void reloaded(AppProperties properties) {
+            applyProperties(properties);
+        }
+    };
 
     /**
      * Constructor.  Initializes and starts the Jetty server.
@@ -111,7 +325,7 @@ public class JettyUploadServer {
      * @throws Exception
      */
     private JettyUploadServer(File resourceBase, File uploadDirectory, String servletPath) throws Exception {
-        this(DEFAULT_PORT, resourceBase, uploadDirectory, servletPath);
+        this(DEFAULT_PORT, resourceBase, uploadDirectory, servletPath, new StatisticsByteBufferPool(-1L));
     }
 
     /**
@@ -119,10 +333,27 @@ public class JettyUploadServer {
      * file upload path.
      *
      * @param port
+     * @param bufferPool shared by the connector and the upload servlet
      * @throws Exception
      */
-    private JettyUploadServer(int port, File resourceBase, File uploadDirectory, String servletPath) throws Exception {
-        this.server = new Server(port);
+    private JettyUploadServer(int port, File resourceBase, File uploadDirectory, String servletPath,
+                              StatisticsByteBufferPool bufferPool) throws Exception {
+        this.threadPool = new QueuedThreadPool();
+        this.defaultMinThreads = threadPool.getMinThreads();
+        this.defaultMaxThreads = threadPool.getMaxThreads();
+        this.server = new Server(threadPool);
+        ServerConnector connector = new ServerConnector(server, null, null, bufferPool, -1, -1,
+                new HttpConnectionFactory());
+        connector.setPort(port);
+        // Jetty stops the connectors once draining is over, before their connections are closed
+        connector.addLifeCycleListener(new AbstractLifeCycle.AbstractLifeCycleListener() {
+            @Override
+            public void lifeCycleStopping(LifeCycle event) {
+                reportUndrainedUploads();
+            }
+        });
+        server.addConnector(connector);
+        this.bufferPool = bufferPool;
         this.resourceBase = resourceBase;
         this.servletPath = servletPath;
         this.uploadDirectory = uploadDirectory;
@@ -134,11 +365,31 @@ public class JettyUploadServer {
      * @throws Exception
      */
     public JettyUploadServer start() throws Exception {
+        Map<String, Long> timings = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        long phase = start;
         initServlets();
+        phase = recordPhase(timings, "handlers", phase);
+        if (appProperties) {
+            applyProperties(AppProperties.getInstance());
+            AppProperties.addListener(propertiesListener);
+            AppProperties.startWatching();
+            phase = recordPhase(timings, "properties", phase);
+        }
         server.start();
+        recordPhase(timings, "jetty", phase);
+        timings.put("total", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        startupTimings = Collections.unmodifiableMap(timings);
+        LOG.info("Started in {} ms {}", timings.get("total"), timings);
         return this;
     }
 
+    private static long recordPhase(Map<String, Long> timings, String name, long phaseStart) {
+        long now = System.nanoTime();
+        timings.put(name, TimeUnit.NANOSECONDS.toMillis(now - phaseStart));
+        return now;
+    }
+
     /**
      * Joins the current thread to the Jetty server thread.
      *
@@ -150,28 +401,116 @@ public class JettyUploadServer {
     }
 
     /**
-     * Stops the Jetty server.
+     * Stops the Jetty server, with draining if configured, when the JVM is asked to exit, e.g. by SIGTERM during a
+     * rolling restart.
+     */
+    public JettyUploadServer stopAtShutdown() {
+        server.setStopAtShutdown(true);
+        return this;
+    }
+
+    /**
+     * Stops the Jetty server, after draining if configured.
      */
     public void stop() throws Exception {
-        server.stop();
+        AppProperties.removeListener(propertiesListener);
+        try {
+            server.stop();
+        } catch (Exception e) {
+            // the graceful stop reports a drain timeout, but has stopped everything regardless
+            if (!isDrainTimeout(e)) {
+                throw e;
+            }
+        }
+        LOG.info("Buffer pool: {}", bufferPool);
+    }
+
+    /**
+     * Whether a graceful stop failed only because draining timed out.
+     */
+    static boolean isDrainTimeout(Throwable t) {
+        if (t instanceof MultiException) {
+            for (Throwable cause : ((MultiException) t).getThrowables()) {
+                if (!isDrainTimeout(cause)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return t instanceof TimeoutException;
+    }
+
+    /**
+     * Duration in milliseconds of each phase of the last {@link #start()}.
+     *
+     * @return
+     */
+    public Map<String, Long> getStartupTimings() {
+        return startupTimings;
+    }
+
+    /**
+     * Uploads still in flight when the server last stopped, after any draining, and so possibly cut off.
+     *
+     * @return
+     */
+    public List<String> getUndrainedUploads() {
+        return undrainedUploads;
+    }
+
+    private void reportUndrainedUploads() {
+        if (uploadServlet == null) {
+            return;
+        }
+        undrainedUploads = uploadServlet.getInFlightUploads();
+        if (!undrainedUploads.isEmpty()) {
+            LOG.warn("Stopping with {} uploads in flight: {}", undrainedUploads.size(), undrainedUploads);
+        }
+    }
+
+    /**
+     * The buffer pool shared by the connector and the upload servlet, for hit/miss statistics.
+     *
+     * @return
+     */
+    public StatisticsByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * The access log, for its dropped-entry count.
+     *
+     * @return null unless enabled
+     */
+    public AccessLog getAccessLog() {
+        return accessLog;
     }
 
     private void initServlets() {
-        // init servlet tree
-        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        // init servlet tree; servlets are registered here, so no sessions, annotation scanning or initializers
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
 
         context.setContextPath("/");
         context.setWelcomeFiles(new String[]{"form.html"});
 
         // dynamic file upload servlet
-        ServletHolder uploadServletHolder = new ServletHolder("upload", new FileUploadServlet(uploadDirectory));
+        uploadServlet = new FileUploadServlet(uploadDirectory, fileSizeThreshold, bufferPool, cluster);
+        uploadServletHolder = new ServletHolder("upload", uploadServlet);
         // setup multipart config (servlet spec 3.0)
-        MultipartConfig multipartConfig = FileUploadServlet.class.getAnnotation(MultipartConfig.class);
-        MultipartConfigElement multipartConfigElm = new MultipartConfigElement(multipartConfig);
-        uploadServletHolder.getRegistration().setMultipartConfig(multipartConfigElm);
+        setMultipartConfig(maxFileSize, maxRequestSize, fileSizeThreshold);
         context.addServlet(uploadServletHolder, servletPath);
 
+        // reject over-limit uploads before the multipart body is parsed
+        if (appProperties || maxRequestSize > 0 || maxInFlightBytes > 0 || rateLimit > 0) {
+            admissionControl = new AdmissionControlFilter(maxRequestSize, maxInFlightBytes, rateLimit, rateBurst);
+            context.addFilter(new FilterHolder(admissionControl), servletPath, EnumSet.of(DispatcherType.REQUEST));
+            LOG.info("Upload admission control enabled");
+        }
+
         LOG.info("Serving file upload servlet at \"/upload\"");
+        if (cluster != null) {
+            LOG.info("Cluster node {} of {}", cluster.getSelf(), cluster.getNodes());
+        }
 
         // static default servlet for root content (per servlet spec; must be last)
         ServletHolder defaultServlet = new ServletHolder("default", DefaultServlet.class);
@@ -181,6 +520,70 @@ public class JettyUploadServer {
 
         LOG.info("Serving static content at root \"/\"");
 
-        server.setHandler(context);
+        if (drainTimeout > 0) {
+            // the graceful handler whose in-flight requests Jetty's stop waits for
+            StatisticsHandler statisticsHandler = new StatisticsHandler();
+            statisticsHandler.setHandler(context);
+            server.setHandler(statisticsHandler);
+        } else {
+            server.setHandler(context);
+        }
+    }
+
+    /**
+     * Applies the configured limits over the servlet's annotation.  Jetty reads the registration's config on each
+     * request, so replacing it takes effect immediately.
+     */
+    private void setMultipartConfig(long maxFileSize, long maxRequestSize, int fileSizeThreshold) {
+        MultipartConfig multipartConfig = FileUploadServlet.class.getAnnotation(MultipartConfig.class);
+        MultipartConfigElement multipartConfigElm = new MultipartConfigElement(
+                multipartConfig.location(),
+                maxFileSize > 0 ? maxFileSize : multipartConfig.maxFileSize(),
+                maxRequestSize > 0 ? maxRequestSize : multipartConfig.maxRequestSize(),
+                fileSizeThreshold > 0 ? fileSizeThreshold : multipartConfig.fileSizeThreshold());
+        uploadServletHolder.getRegistration().setMultipartConfig(multipartConfigElm);
+    }
+
+    /**
+     * Applies a properties snapshot, falling back to the builder's values for unset keys.  The snapshot has checked
+     * its own values; if they're inconsistent with the builder's, the previous settings are kept.
+     */
+    private synchronized void applyProperties(AppProperties props) {
+        int minThreads = props.getMinThreads(defaultMinThreads);
+        int maxThreads = props.getMaxThreads(defaultMaxThreads);
+        long maxFileSize = props.getMaxFileSize(this.maxFileSize);
+        long maxRequestSize = props.getMaxRequestSize(this.maxRequestSize);
+        int fileSizeThreshold = props.getFileSizeThreshold(this.fileSizeThreshold);
+        if (minThreads > maxThreads) {
+            LOG.warn("Keeping previous server settings; thread counts invalid: min={} max={}", minThreads, maxThreads);
+            return;
+        }
+        if (maxFileSize > 0 && maxRequestSize > 0 && maxFileSize > maxRequestSize) {
+            LOG.warn("Keeping previous server settings; max file size {} exceeds max request size {}",
+                    maxFileSize, maxRequestSize);
+            return;
+        }
+
+        // order matters: Jetty rejects min > max at every step
+        if (maxThreads >= threadPool.getMaxThreads()) {
+            threadPool.setMaxThreads(maxThreads);
+            threadPool.setMinThreads(minThreads);
+        } else {
+            threadPool.setMinThreads(minThreads);
+            threadPool.setMaxThreads(maxThreads);
+        }
+
+        setMultipartConfig(maxFileSize, maxRequestSize, fileSizeThreshold);
+
+        uploadServlet.setFileSizeThreshold(fileSizeThreshold);
+        uploadServlet.setCopyBufferSize(props.getCopyBufferSize(FileUploadServlet.DEFAULT_COPY_BUFFER_SIZE));
+        uploadServlet.setResponseMode(props.getResponseMode(ResponseMode.PRETTY));
+
+        admissionControl.setLimits(maxRequestSize,
+                props.getMaxInFlightBytes(maxInFlightBytes),
+                props.getRateLimit(rateLimit),
+                props.getRateBurst(rateBurst),
+                props.getMaxTrackedClients(AdmissionControlFilter.DEFAULT_MAX_TRACKED_CLIENTS));
+        LOG.info("Applied server settings from {}", AppProperties.PROPERTIES_FILE);
     }
 }
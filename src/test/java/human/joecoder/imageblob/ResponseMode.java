@@ -0,0 +1,41 @@
+package human.joecoder.imageblob;
+
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.EnumSet;
+
+/**
+ * How {@link FileUploadServlet} formats its JSON response.
+ */
+public enum ResponseMode {
+    PRETTY(true), COMPACT(false);
+
+    public static ResponseMode fromString(String str) {
+        for (ResponseMode mode : EnumSet.allOf(ResponseMode.class)) {
+            if (mode.name().equalsIgnoreCase(str)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Response mode not recognized: " + str);
+    }
+
+    // thread-safe
+    private final ObjectWriter writer;
+
+    ResponseMode(boolean pretty) {
+        // enum constants can't reference static fields from their constructor, so no shared mapper
+        ObjectMapper mapper = new ObjectMapper();
+        this.writer = pretty ? mapper.writer(new DefaultPrettyPrinter()) : mapper.writer();
+    }
+
+    /**
+     * The JSON writer for this mode.
+     *
+     * @return
+     */
+    public ObjectWriter getWriter() {
+        return writer;
+    }
+}
@@ -0,0 +1,99 @@
+package human.joecoder.imageblob;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue (Vyukov's array-based MPMC design).  Each slot carries a sequence number telling
+ * producers and consumers whose turn it is, so neither side ever blocks; {@link #offer(Object)} fails instead.
+ *
+ * @param <T> element type
+ */
+public class RingBuffer<T> {
+
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element if there is room.
+     *
+     * @param element
+     * @return false if full
+     */
+    public boolean offer(T element) {
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // slot not yet consumed from the previous lap
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        elements.set(index, element);
+        sequences.set(index, pos + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element.
+     *
+     * @return null if empty
+     */
+    public T poll() {
+        long pos = head.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                // slot not yet published
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+        T element = elements.get(index);
+        elements.set(index, null);
+        sequences.set(index, pos + mask + 1);
+        return element;
+    }
+}
@@ -0,0 +1,56 @@
+package human.joecoder.imageblob;
+
+/**
+ * Per-request time spent in each stage of {@link FileUploadServlet}, in nanoseconds.  Attached to the request as
+ * {@link #ATTRIBUTE} for the {@link AccessLog}.  Only touched by the request's thread.
+ */
+public class StageTimings {
+
+    public static final String ATTRIBUTE = StageTimings.class.getName();
+
+    private long parseNanos;
+    private long storeNanos;
+    private long encodeNanos;
+    private long respondNanos;
+    private int uploads;
+
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    public void addParse(long nanos) {
+        parseNanos += nanos;
+    }
+
+    public long getStoreNanos() {
+        return storeNanos;
+    }
+
+    public void addStore(long nanos) {
+        storeNanos += nanos;
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    public void addEncode(long nanos) {
+        encodeNanos += nanos;
+    }
+
+    public long getRespondNanos() {
+        return respondNanos;
+    }
+
+    public void addRespond(long nanos) {
+        respondNanos += nanos;
+    }
+
+    public int getUploads() {
+        return uploads;
+    }
+
+    public void addUpload() {
+        uploads++;
+    }
+}
@@ -0,0 +1,75 @@
+package human.joecoder.imageblob;
+
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded {@link ArrayByteBufferPool} that counts pool hits and misses.  Shared by the Jetty connector and the
+ * upload, encoding and response stages of {@link FileUploadServlet}.
+ */
+public class StatisticsByteBufferPool extends ArrayByteBufferPool {
+
+    private static final int MIN_CAPACITY = 0;
+    private static final int CAPACITY_FACTOR = 1024;
+    private static final int MAX_CAPACITY = 1024 * 1024;
+    private static final int MAX_QUEUE_LENGTH = -1;
+
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong releases = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param maxMemory the maximum heap and direct memory, each, retained by the pool; -1 for Jetty's heuristic
+     */
+    public StatisticsByteBufferPool(long maxMemory) {
+        super(MIN_CAPACITY, CAPACITY_FACTOR, MAX_CAPACITY, MAX_QUEUE_LENGTH, maxMemory, maxMemory);
+    }
+
+    @Override
+    public ByteBuffer acquire(int size, boolean direct) {
+        acquires.incrementAndGet();
+        return super.acquire(size, direct);
+    }
+
+    @Override
+    public ByteBuffer newByteBuffer(int capacity, boolean direct) {
+        // only called when no pooled buffer was available
+        misses.incrementAndGet();
+        return super.newByteBuffer(capacity, direct);
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        if (buffer != null) {
+            releases.incrementAndGet();
+            super.release(buffer);
+        }
+    }
+
+    public long getAcquires() {
+        return acquires.get();
+    }
+
+    public long getHits() {
+        return acquires.get() - misses.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getReleases() {
+        return releases.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x{acquires=%d,hits=%d,misses=%d,releases=%d,heap=%d,direct=%d}",
+                getClass().getSimpleName(), hashCode(), getAcquires(), getHits(), getMisses(), getReleases(),
+                getHeapMemory(), getDirectMemory());
+    }
+}
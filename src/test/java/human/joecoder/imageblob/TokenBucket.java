@@ -0,0 +1,60 @@
+package human.joecoder.imageblob;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simple token bucket rate limiter.  Tokens refill continuously at a fixed rate up to the bucket capacity.
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor.  The bucket starts full.
+     *
+     * @param tokensPerSecond the refill rate
+     * @param capacity        the maximum burst size
+     */
+    public TokenBucket(double tokensPerSecond, int capacity) {
+        if (tokensPerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Rate and capacity must be positive.");
+        }
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a single token if one is available.
+     *
+     * @return 0 if a token was taken, otherwise the number of nanoseconds until one becomes available
+     */
+    public synchronized long tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0L;
+        }
+        return (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    /**
+     * Whether the bucket has refilled completely, i.e. the client has been idle long enough to be forgotten.
+     *
+     * @return
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
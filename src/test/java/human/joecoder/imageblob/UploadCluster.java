@@ -0,0 +1,206 @@
+package human.joecoder.imageblob;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Membership of one {@link JettyUploadServer} in a group of servers sharing an upload namespace.
+ * <p>
+ * A new upload is assigned to an owning node by consistent hashing, and its id is prefixed with the key of the
+ * owner's partition of the shared storage, e.g. {@code 1f3a9c0e-<uuid>}.  The partition an upload is stored in is
+ * read back from its id rather than from the current ring, so uploads stay where they were stored when nodes join
+ * or leave.  Reads are forwarded to the owner while it is a member, and served from the shared storage otherwise.
+ * Each node expires the uploads in its own partition once they exceed the retention, and adopts the partitions of
+ * nodes no longer in the group by hashing their keys onto the ring, so that every partition is cleaned up by
+ * exactly one node.
+ */
+public class UploadCluster {
+
+    /**
+     * Marks a request already forwarded to its owner, so it's served locally rather than forwarded again.
+     */
+    public static final String FORWARDED_HEADER = "X-Upload-Forwarded";
+    private static final Map<String, String> FORWARDED_HEADERS = Collections.singletonMap(FORWARDED_HEADER, "1");
+    private static final Pattern PARTITION_KEY = Pattern.compile("[0-9a-f]{8}");
+    private static final Pattern UPLOAD_ID = Pattern.compile(
+            "[0-9a-f]{8}-[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    private static final int PARTITION_KEY_LENGTH = 8;
+
+    private final String self;
+    private final List<String> nodes;
+    private final HashRing ring;
+    private final File storageRoot;
+    private final long uploadRetention;
+    private final Map<String, String> nodesByPartition = new HashMap<>();
+
+    /**
+     * Constructor.  Creates each node's partition under the storage root.
+     *
+     * @param self            this node's base URL, e.g. {@code http://localhost:8081}; must be one of the nodes
+     * @param nodes           base URLs of all nodes, identical on every node
+     * @param storageRoot     storage shared by all nodes
+     * @param uploadRetention milliseconds an upload is kept before its owner deletes it
+     * @throws IOException if a partition directory can't be created
+     */
+    public UploadCluster(String self, List<String> nodes, File storageRoot, long uploadRetention)
+            throws IOException {
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("Node " + self + " is not a member of " + nodes);
+        }
+        this.self = self;
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.ring = new HashRing(nodes);
+        this.storageRoot = storageRoot;
+        this.uploadRetention = uploadRetention;
+        for (String node : nodes) {
+            String key = partitionKey(node);
+            if (nodesByPartition.containsKey(key)) {
+                throw new IllegalArgumentException("Nodes " + node + " and " + nodesByPartition.get(key) +
+                        " share a partition");
+            }
+            nodesByPartition.put(key, node);
+            File partition = new File(storageRoot, key);
+            // nodes starting together race to create the partitions
+            if (!partition.mkdirs() && !partition.isDirectory()) {
+                throw new IOException("Failed to create storage partition " + partition);
+            }
+        }
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public long getUploadRetention() {
+        return uploadRetention;
+    }
+
+    /**
+     * A new upload id, prefixed with the partition key of the node the ring assigns it to.
+     *
+     * @return
+     */
+    public String newUploadId() {
+        String uuid = UUID.randomUUID().toString();
+        return partitionKey(ring.nodeFor(uuid)) + "-" + uuid;
+    }
+
+    /**
+     * Whether the id has the form returned by {@link #newUploadId()}.
+     *
+     * @param uploadId
+     * @return
+     */
+    public boolean isUploadId(String uploadId) {
+        return uploadId != null && UPLOAD_ID.matcher(uploadId).matches();
+    }
+
+    /**
+     * The base URL of the node owning the upload.
+     *
+     * @param uploadId
+     * @return null if the owner is no longer a member
+     */
+    public String ownerOf(String uploadId) {
+        return nodesByPartition.get(uploadId.substring(0, PARTITION_KEY_LENGTH));
+    }
+
+    public boolean isLocal(String uploadId) {
+        return self.equals(ownerOf(uploadId));
+    }
+
+    /**
+     * The partition of the shared storage the upload is stored in, whether or not its owner is still a member.
+     *
+     * @param uploadId
+     * @return
+     */
+    public File directoryFor(String uploadId) {
+        return new File(storageRoot, uploadId.substring(0, PARTITION_KEY_LENGTH));
+    }
+
+    /**
+     * Headers marking a request as forwarded by this cluster.
+     *
+     * @return
+     */
+    public Map<String, String> forwardedHeaders() {
+        return FORWARDED_HEADERS;
+    }
+
+    /**
+     * Deletes the files older than the retention in this node's partition and in the partitions of former members
+     * the ring assigns to this node, including partial writes abandoned by a crash.
+     *
+     * @return the number of files deleted
+     */
+    public int expireUploads() {
+        File[] partitions = storageRoot.listFiles();
+        if (partitions == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - uploadRetention;
+        int deleted = 0;
+        for (File partition : partitions) {
+            if (partition.isDirectory() && isExpiredBySelf(partition.getName())) {
+                deleted += expire(partition, cutoff);
+            }
+        }
+        return deleted;
+    }
+
+    private boolean isExpiredBySelf(String key) {
+        if (!PARTITION_KEY.matcher(key).matches()) {
+            return false;
+        }
+        String owner = nodesByPartition.get(key);
+        return self.equals(owner != null ? owner : ring.nodeFor(key));
+    }
+
+    private static int expire(File partition, long cutoff) {
+        File[] files = partition.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File file : files) {
+            if (file.isFile() && file.lastModified() < cutoff && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * The node's partition key: a prefix of the hash of its base URL, so that it fits in an id.
+     */
+    private static String partitionKey(String node) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE is required to provide MD5
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = md5.digest(node.getBytes(StandardCharsets.UTF_8));
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < PARTITION_KEY_LENGTH / 2; i++) {
+            key.append(String.format("%02x", digest[i] & 0xFF));
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package human.joecoder.imageblob.testng;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal HTTP/1.1 client over plain sockets, so that a request can stall partway through its body.  Requests are
+ * strings of ISO-8859-1 characters, so that a body may carry any bytes, and always ask the server to close the
+ * connection, so that a response ends with the stream.
+ *
+ * @author joe
+ */
+class RawHttp {
+
+    static final String BOUNDARY = "RawHttpBoundary";
+
+    private RawHttp() {
+    }
+
+    /**
+     * A file part of a multipart body.
+     */
+    static String filePart(String name, String fileName, String content) {
+        return "--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "\r\n" +
+                content + "\r\n";
+    }
+
+    /**
+     * A form field of a multipart body.
+     */
+    static String fieldPart(String name, String value) {
+        return "--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + name + "\"\r\n" +
+                "\r\n" +
+                value + "\r\n";
+    }
+
+    /**
+     * A multipart body of the given parts.
+     */
+    static String multipart(String... parts) {
+        StringBuilder body = new StringBuilder();
+        for (String part : parts) {
+            body.append(part);
+        }
+        return body.append("--").append(BOUNDARY).append("--\r\n").toString();
+    }
+
+    /**
+     * The request line and headers of a multipart POST.
+     */
+    static String postHeaders(int port, String path, long contentLength) {
+        return "POST " + path + " HTTP/1.1\r\n" +
+                "Host: localhost:" + port + "\r\n" +
+                "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n" +
+                "Content-Length: " + contentLength + "\r\n" +
+                "Connection: close\r\n" +
+                "\r\n";
+    }
+
+    static Response post(int port, String path, String body) throws IOException {
+        return send(port, postHeaders(port, path, body.length()) + body);
+    }
+
+    static Response get(int port, String pathAndQuery) throws IOException {
+        return send(port, "GET " + pathAndQuery + " HTTP/1.1\r\n" +
+                "Host: localhost:" + port + "\r\n" +
+                "Connection: close\r\n" +
+                "\r\n");
+    }
+
+    static Response send(int port, String request) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            return read(socket);
+        }
+    }
+
+    /**
+     * Reads the response to a request sent on the socket, until the server closes the connection.
+     */
+    static Response read(Socket socket) throws IOException {
+        return Response.parse(IOUtils.toByteArray(socket.getInputStream()));
+    }
+
+    static class Response {
+        int status;
+        Map<String, String> headers = new HashMap<>();
+        byte[] body;
+
+        private static Response parse(byte[] bytes) throws IOException {
+            String text = new String(bytes, StandardCharsets.ISO_8859_1);
+            int end = text.indexOf("\r\n\r\n");
+            if (end < 0) {
+                throw new IOException("Incomplete response: " + text);
+            }
+            String[] lines = text.substring(0, end).split("\r\n");
+            Response response = new Response();
+            response.status = Integer.parseInt(lines[0].split(" ")[1]);
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                response.headers.put(lines[i].substring(0, colon).trim().toLowerCase(),
+                        lines[i].substring(colon + 1).trim());
+            }
+            String body = text.substring(end + 4);
+            if ("chunked".equalsIgnoreCase(response.headers.get("transfer-encoding"))) {
+                body = dechunk(body);
+            }
+            response.body = body.getBytes(StandardCharsets.ISO_8859_1);
+            return response;
+        }
+
+        private static String dechunk(String chunked) {
+            StringBuilder body = new StringBuilder();
+            int position = 0;
+            while (true) {
+                int lineEnd = chunked.indexOf("\r\n", position);
+                int size = Integer.parseInt(chunked.substring(position, lineEnd).split(";")[0].trim(), 16);
+                if (size == 0) {
+                    return body.toString();
+                }
+                body.append(chunked, lineEnd + 2, lineEnd + 2 + size);
+                position = lineEnd + 2 + size + 2;
+            }
+        }
+    }
+}
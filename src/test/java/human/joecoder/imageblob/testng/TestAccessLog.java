@@ -0,0 +1,121 @@
+package human.joecoder.imageblob.testng;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import human.joecoder.imageblob.AccessLog;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the asynchronous access log.
+ *
+ * @author joe
+ */
+public class TestAccessLog {
+
+    private static final int CLIENTS = 8;
+    private static final int REQUESTS_PER_CLIENT = 50;
+
+    @Test(description = "Test every request is either written or counted as dropped, with a tiny buffer.")
+    public void testWrittenOrDropped() throws Exception {
+        File file = File.createTempFile("access", ".log");
+        file.deleteOnExit();
+        AccessLog accessLog = new AccessLog(file, 2, Long.MAX_VALUE, 0);
+        Server server = new Server(0);
+        server.setRequestLog(accessLog);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) {
+                response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        final int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        try {
+            ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int c = 0; c < CLIENTS; c++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        for (int i = 0; i < REQUESTS_PER_CLIENT; i++) {
+                            get(new URL("http://localhost:" + port + "/"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            executor.shutdown();
+            for (Future<Void> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            // drains and closes the log
+            server.stop();
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        long written = 0;
+        long droppedReported = 0;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            JsonNode entry = mapper.readTree(line);
+            if (entry.has("dropped")) {
+                droppedReported = entry.get("dropped").asLong();
+            } else {
+                Assert.assertEquals(entry.get("status").asInt(), HttpServletResponse.SC_NO_CONTENT,
+                        "Wrong status logged.\n");
+                written++;
+            }
+        }
+        Assert.assertEquals(written + accessLog.getDropped(), CLIENTS * REQUESTS_PER_CLIENT,
+                "Entries neither written nor counted.\n");
+        Assert.assertEquals(droppedReported, accessLog.getDropped(),
+                "Final dropped count not written.\n");
+    }
+
+    @Test(description = "Test stopping a log that failed to start.")
+    public void testStopAfterFailedStart() throws Exception {
+        File notADirectory = File.createTempFile("access", ".log");
+        notADirectory.deleteOnExit();
+        AccessLog accessLog = new AccessLog(new File(notADirectory, "access.log"));
+        try {
+            accessLog.start();
+            Assert.fail("Started with an unwritable file.");
+        } catch (IOException e) {
+            // expected
+        }
+        accessLog.stop();
+    }
+
+    private static void get(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            while (in.read() != -1) {
+                // drain for keep-alive
+            }
+        }
+    }
+}
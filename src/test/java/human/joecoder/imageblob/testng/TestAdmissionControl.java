@@ -0,0 +1,143 @@
+package human.joecoder.imageblob.testng;
+
+import human.joecoder.imageblob.JettyUploadServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for upload admission control.  Talks HTTP over plain sockets so that a request can stall partway
+ * through its body; see {@link RawHttp}.
+ *
+ * @author joe
+ */
+public class TestAdmissionControl {
+
+    private static final int PORT = 8090;
+    private static final File RESOURCE_BASE = new File("src/test/webapp");
+    private static final String UPLOAD_SERVLET_PATH = "/upload";
+    private static final String BODY = RawHttp.multipart(RawHttp.filePart("file", "test.txt", "hello"));
+    private static final long POLL_MILLIS = 100L;
+    private static final long DISPATCH_MILLIS = 1000L;
+    private static final int POLL_ATTEMPTS = 50;
+
+    private JettyUploadServer server = null;
+
+    ////////////////////
+    // TESTNG LIFECYCLE
+    ////////////////////
+
+    @AfterMethod(alwaysRun = true)
+    public void afterMethod() throws Exception {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+    }
+
+    //////////////
+    // TEST CASES
+    //////////////
+
+    @Test(description = "Test requests over the maximum request size are rejected with 413.")
+    public void testMaxRequestSize() throws Exception {
+        server = newServer().withMaxRequestSize(1024L).build().start();
+        Assert.assertEquals(post(2048L).status, 413,
+                "Oversized request not rejected.\n");
+        Assert.assertEquals(post().status, 200,
+                "Small request rejected.\n");
+    }
+
+    @Test(description = "Test parts over the maximum file size are rejected with 413, whatever the framing.")
+    public void testMaxFileSize() throws Exception {
+        server = newServer().withMaxFileSize(4L).build().start();
+        // "hello" is one byte over; the request declares its Content-Length, so only the parser can tell
+        Assert.assertEquals(post().status, 413,
+                "Oversized part not rejected.\n");
+    }
+
+    @Test(description = "Test clients over the rate limit are rejected with 429 and Retry-After.")
+    public void testRateLimit() throws Exception {
+        server = newServer().withRateLimit(0.001d, 1).build().start();
+        Assert.assertEquals(post().status, 200,
+                "First request rejected.\n");
+        RawHttp.Response response = post();
+        Assert.assertEquals(response.status, 429,
+                "Request over the rate limit not rejected.\n");
+        long retryAfter = Long.parseLong(response.headers.get("retry-after"));
+        Assert.assertTrue(retryAfter > 0 && retryAfter <= 1000L,
+                "Wrong Retry-After: " + retryAfter + "\n");
+    }
+
+    @Test(description = "Test requests over the in-flight byte cap are rejected with 429 until capacity frees up.")
+    public void testMaxInFlightBytes() throws Exception {
+        server = newServer().withMaxInFlightBytes(1024L).build().start();
+        RawHttp.Response response;
+        // sends only the start of its body (Jetty dispatches on first content), holding the whole cap until closed
+        try (Socket stalled = new Socket("localhost", PORT)) {
+            OutputStream out = stalled.getOutputStream();
+            out.write((headers(1000L) + BODY.substring(0, 10)).getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            // let it be admitted first, or it would be the one rejected
+            Thread.sleep(DISPATCH_MILLIS);
+            response = pollUntil(429);
+        }
+        Assert.assertEquals(response.status, 429,
+                "Request over the in-flight cap not rejected.\n");
+        Assert.assertEquals(response.headers.get("retry-after"), "1",
+                "Wrong Retry-After.\n");
+        Assert.assertEquals(pollUntil(200).status, 200,
+                "In-flight bytes not released.\n");
+    }
+
+    //////////////////
+    // HELPER METHODS
+    //////////////////
+
+    private static JettyUploadServer.Builder newServer() {
+        return JettyUploadServer.Builder.newInstance()
+                .withPort(PORT)
+                .withResourceBase(RESOURCE_BASE)
+                .withServletPath(UPLOAD_SERVLET_PATH);
+    }
+
+    private static RawHttp.Response pollUntil(int status) throws Exception {
+        RawHttp.Response response = null;
+        for (int i = 0; i < POLL_ATTEMPTS; i++) {
+            response = post();
+            if (response.status == status) {
+                break;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        return response;
+    }
+
+    /**
+     * Posts a small upload.
+     */
+    private static RawHttp.Response post() throws IOException {
+        return RawHttp.post(PORT, UPLOAD_SERVLET_PATH, BODY);
+    }
+
+    /**
+     * Posts a body of the given length.
+     */
+    private static RawHttp.Response post(long contentLength) throws IOException {
+        StringBuilder body = new StringBuilder(headers(contentLength));
+        for (long i = 0; i < contentLength; i++) {
+            body.append('x');
+        }
+        return RawHttp.send(PORT, body.toString());
+    }
+
+    private static String headers(long contentLength) {
+        return RawHttp.postHeaders(PORT, UPLOAD_SERVLET_PATH, contentLength);
+    }
+}
@@ -0,0 +1,179 @@
+package human.joecoder.imageblob.testng;
+
+import human.joecoder.imageblob.AppProperties;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for reloading and watching the properties file.  Edits the real file, as that is the one read, and
+ * restores it after each test.
+ *
+ * @author joe
+ */
+public class TestAppProperties {
+
+    private static final Path PROPERTIES = Paths.get(AppProperties.PROPERTIES_FILE);
+    private static final long WATCH_TIMEOUT_SECONDS = 10L;
+    // longer than the watcher waits for edits to settle
+    private static final long UNWATCHED_MILLIS = 1000L;
+
+    private byte[] original = null;
+
+    ////////////////////
+    // TESTNG LIFECYCLE
+    ////////////////////
+
+    @BeforeClass(alwaysRun = true)
+    public void beforeClass() throws Exception {
+        original = Files.readAllBytes(PROPERTIES);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void afterMethod() throws Exception {
+        AppProperties.stopWatching();
+        Files.write(PROPERTIES, original);
+        AppProperties.reload();
+    }
+
+    //////////////////
+    // DATA PROVIDERS
+    //////////////////
+
+    /**
+     * Edits that parse, but that the server builder would reject.
+     */
+    @DataProvider(name = "invalid")
+    public Object[][] invalid() {
+        return new Object[][]{
+                {"server_max_file_size = 2048\nserver_max_request_size = 1024"},
+                {"server_max_request_size = -2"},
+                {"server_max_in_flight_bytes = -2"},
+                {"server_file_size_threshold = -1"},
+                {"server_copy_buffer_size = -1"},
+                {"server_min_threads = 10\nserver_max_threads = 5"},
+                {"server_max_threads = 0"},
+                {"server_rate_limit = -1"},
+                {"server_rate_burst = 0"},
+                {"server_max_tracked_clients = 0"},
+                {"server_rate_burst = many"},
+                {"server_response_mode = FANCY"}
+        };
+    }
+
+    //////////////
+    // TEST CASES
+    //////////////
+
+    @Test(description = "Test a reload swaps in the new snapshot and notifies listeners with it.")
+    public void testReload() throws Exception {
+        final AtomicReference<AppProperties> notified = new AtomicReference<>();
+        AppProperties.Listener listener = new AppProperties.Listener() {
+            @Override
+            public void reloaded(AppProperties properties) {
+                notified.set(properties);
+            }
+        };
+        AppProperties.addListener(listener);
+        try {
+            writeProperties("server_rate_burst = 7");
+            AppProperties reloaded = AppProperties.reload();
+            Assert.assertEquals(reloaded.getRateBurst(1), 7,
+                    "Edit not read.\n");
+            Assert.assertSame(AppProperties.getInstance(), reloaded,
+                    "Snapshot not swapped in.\n");
+            Assert.assertSame(notified.get(), reloaded,
+                    "Listener not notified with the new snapshot.\n");
+        } finally {
+            AppProperties.removeListener(listener);
+        }
+    }
+
+    @Test(description = "Test an invalid edit keeps the previous snapshot and notifies no one.",
+            dataProvider = "invalid")
+    public void testReloadInvalid(String edit) throws Exception {
+        final AtomicInteger notifications = new AtomicInteger();
+        AppProperties.Listener listener = new AppProperties.Listener() {
+            @Override
+            public void reloaded(AppProperties properties) {
+                notifications.incrementAndGet();
+            }
+        };
+        writeProperties("server_rate_burst = 7");
+        AppProperties previous = AppProperties.reload();
+        AppProperties.addListener(listener);
+        try {
+            writeProperties(edit);
+            try {
+                AppProperties.reload();
+                Assert.fail("Invalid edit loaded: " + edit);
+            } catch (IOException e) {
+                // expected
+            }
+            Assert.assertSame(AppProperties.getInstance(), previous,
+                    "Previous snapshot not kept.\n");
+            Assert.assertEquals(notifications.get(), 0,
+                    "Listener notified of an invalid edit.\n");
+        } finally {
+            AppProperties.removeListener(listener);
+        }
+    }
+
+    @Test(description = "Test edits are reloaded while watching, until the last listener is removed.")
+    public void testWatching() throws Exception {
+        final CountDownLatch reloaded = new CountDownLatch(1);
+        AppProperties.Listener listener = new AppProperties.Listener() {
+            @Override
+            public void reloaded(AppProperties properties) {
+                if (properties.getRateBurst(1) == 5) {
+                    reloaded.countDown();
+                }
+            }
+        };
+        AppProperties.addListener(listener);
+        try {
+            AppProperties.startWatching();
+            Assert.assertTrue(AppProperties.isWatching(),
+                    "Not watching.\n");
+            writeProperties("server_rate_burst = 5");
+            Assert.assertTrue(reloaded.await(WATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS),
+                    "Edit not reloaded.\n");
+        } finally {
+            AppProperties.removeListener(listener);
+        }
+        Assert.assertFalse(AppProperties.isWatching(),
+                "Still watching with no listeners.\n");
+        AppProperties current = AppProperties.getInstance();
+        writeProperties("server_rate_burst = 6");
+        Thread.sleep(UNWATCHED_MILLIS);
+        Assert.assertSame(AppProperties.getInstance(), current,
+                "Edit reloaded after watching stopped.\n");
+    }
+
+    //////////////////
+    // HELPER METHODS
+    //////////////////
+
+    /**
+     * Writes the original file with the given lines appended.
+     */
+    private void writeProperties(String lines) throws IOException {
+        byte[] edit = ("\n" + lines + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] content = new byte[original.length + edit.length];
+        System.arraycopy(original, 0, content, 0, original.length);
+        System.arraycopy(edit, 0, content, original.length, edit.length);
+        Files.write(PROPERTIES, content);
+    }
+}
@@ -0,0 +1,122 @@
+package human.joecoder.imageblob.testng;
+
+import human.joecoder.imageblob.Base64Utils;
+import human.joecoder.imageblob.StatisticsByteBufferPool;
+import org.apache.commons.codec.binary.Base64;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit tests for the pooled, chunked file encoder against commons-codec.
+ *
+ * @author joe
+ */
+public class TestBase64Utils {
+
+    // the encoder's read chunk
+    private static final int CHUNK = 48 * 1024;
+
+    //////////////////
+    // DATA PROVIDERS
+    //////////////////
+
+    /**
+     * Every length mod 3, small and either side of one and two chunk boundaries.
+     */
+    @DataProvider(name = "lengths")
+    public Object[][] lengths() {
+        int[] lengths = {0, 1, 2, 3, 4, 5,
+                CHUNK - 2, CHUNK - 1, CHUNK, CHUNK + 1, CHUNK + 2,
+                2 * CHUNK - 1, 2 * CHUNK, 2 * CHUNK + 1, 2 * CHUNK + 2};
+        Object[][] data = new Object[lengths.length][];
+        for (int i = 0; i < lengths.length; i++) {
+            data[i] = new Object[]{lengths[i]};
+        }
+        return data;
+    }
+
+    //////////////
+    // TEST CASES
+    //////////////
+
+    @Test(description = "Test files encode exactly as commons-codec does.", dataProvider = "lengths")
+    public void testEncodeFile(int length) throws Exception {
+        byte[] bytes = randomBytes(length);
+        File file = write(bytes);
+        try {
+            byte[] encoded = Base64Utils.encodeBase64(file, new StatisticsByteBufferPool(-1L));
+            Assert.assertEquals(new String(encoded, StandardCharsets.US_ASCII),
+                    new String(Base64.encodeBase64(bytes), StandardCharsets.US_ASCII),
+                    "Wrong encoding of " + length + " bytes.\n");
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Test(description = "Test a buffer's remaining bytes are encoded in place.", dataProvider = "lengths")
+    public void testEncodeBuffer(int length) {
+        // a slice with an array offset, positioned past its first byte
+        byte[] bytes = randomBytes(length + 2);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, length + 1).slice();
+        buffer.position(1);
+        byte[] expected = Base64.encodeBase64(Arrays.copyOfRange(bytes, 2, length + 2));
+        Assert.assertEquals(Base64Utils.encodeBase64(buffer), expected,
+                "Wrong encoding of " + length + " bytes.\n");
+        Assert.assertEquals(buffer.position(), 1,
+                "Buffer position moved.\n");
+    }
+
+    @Test(description = "Test files of any size take one pooled buffer, released and then reused.")
+    public void testPoolStatistics() throws Exception {
+        StatisticsByteBufferPool pool = new StatisticsByteBufferPool(-1L);
+        File small = write(randomBytes(10));
+        File large = write(randomBytes(5 * CHUNK + 1));
+        try {
+            Base64Utils.encodeBase64(small, pool);
+            Assert.assertEquals(pool.getAcquires(), 1L,
+                    "Wrong acquires.\n");
+            Assert.assertEquals(pool.getMisses(), 1L,
+                    "First acquire not a miss.\n");
+            Assert.assertEquals(pool.getReleases(), 1L,
+                    "Buffer not released.\n");
+            Base64Utils.encodeBase64(large, pool);
+            Assert.assertEquals(pool.getAcquires(), 2L,
+                    "Large file not encoded through a single chunk.\n");
+            Assert.assertEquals(pool.getHits(), 1L,
+                    "Released buffer not reused.\n");
+            Assert.assertEquals(pool.getMisses(), 1L,
+                    "Wrong misses.\n");
+            Assert.assertEquals(pool.getReleases(), 2L,
+                    "Buffer not released.\n");
+        } finally {
+            Files.delete(small.toPath());
+            Files.delete(large.toPath());
+        }
+    }
+
+    //////////////////
+    // HELPER METHODS
+    //////////////////
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static File write(byte[] bytes) throws IOException {
+        File file = File.createTempFile("base64", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+}
@@ -0,0 +1,208 @@
+package human.joecoder.imageblob.testng;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import human.joecoder.imageblob.FileResponse;
+import human.joecoder.imageblob.JettyUploadServer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for storing, echoing and serving uploads, over plain sockets; see {@link RawHttp}.
+ *
+ * @author joe
+ */
+public class TestFileUploadServlet {
+
+    private static final int PORT = 8091;
+    private static final File RESOURCE_BASE = new File("src/test/webapp");
+    private static final String UPLOAD_SERVLET_PATH = "/upload";
+    private static final int FILE_SIZE_THRESHOLD = 1024;
+    // more than the servlet queues for background writes, so that some are written on the request thread
+    private static final int BACKLOG_PARTS = 200;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final long DRAIN_SECONDS = 10L;
+
+    private JettyUploadServer server = null;
+    private File uploadDirectory = null;
+
+    ////////////////////
+    // TESTNG LIFECYCLE
+    ////////////////////
+
+    @BeforeMethod(alwaysRun = true)
+    public void beforeMethod() throws Exception {
+        uploadDirectory = Files.createTempDirectory("uploads").toFile();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void afterMethod() throws Exception {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+        FileUtils.deleteDirectory(uploadDirectory);
+    }
+
+    //////////////////
+    // DATA PROVIDERS
+    //////////////////
+
+    /**
+     * File size thresholds under which the test parts are kept in memory, or spooled.
+     */
+    @DataProvider(name = "thresholds")
+    public Object[][] thresholds() {
+        return new Object[][]{{FILE_SIZE_THRESHOLD}, {0}};
+    }
+
+    //////////////
+    // TEST CASES
+    //////////////
+
+    @Test(description = "Test a part under the file size threshold is echoed, stored and served at once.")
+    public void testInMemoryPart() throws Exception {
+        server = newServer().withFileSizeThreshold(FILE_SIZE_THRESHOLD).build().start();
+        String content = content(0, 256);
+        List<FileResponse> files = upload(RawHttp.multipart(RawHttp.filePart("file", "small.bin", content)));
+        Assert.assertEquals(files.size(), 1,
+                "Wrong number of files.\n");
+        assertUploaded(files.get(0), content);
+    }
+
+    @Test(description = "Test parts either side of the threshold, more than the background writer queues.")
+    public void testInMemoryBacklog() throws Exception {
+        server = newServer().withFileSizeThreshold(FILE_SIZE_THRESHOLD).build().start();
+        List<String> contents = new ArrayList<>();
+        List<String> parts = new ArrayList<>();
+        for (int i = 0; i < BACKLOG_PARTS; i++) {
+            contents.add(content(i, 64));
+        }
+        // spooled by the container, and processed from disk
+        contents.add(content(BACKLOG_PARTS, FILE_SIZE_THRESHOLD * 2));
+        for (int i = 0; i < contents.size(); i++) {
+            parts.add(RawHttp.filePart("file" + i, "part" + i + ".bin", contents.get(i)));
+        }
+        List<FileResponse> files = upload(RawHttp.multipart(parts.toArray(new String[parts.size()])));
+        Assert.assertEquals(files.size(), contents.size(),
+                "Wrong number of files.\n");
+        for (FileResponse file : files) {
+            int index = Integer.parseInt(file.getFileName().replaceAll("\\D", ""));
+            assertUploaded(file, contents.get(index));
+        }
+    }
+
+    @Test(description = "Test parts with matching digests are all stored.", dataProvider = "thresholds")
+    public void testDigests(int fileSizeThreshold) throws Exception {
+        server = newServer().withFileSizeThreshold(fileSizeThreshold).build().start();
+        String first = content(1, 100);
+        String second = content(2, 100);
+        List<FileResponse> files = upload(RawHttp.multipart(
+                RawHttp.fieldPart("digest.file0", digest(first)),
+                RawHttp.fieldPart("digest.file1", digest(second)),
+                RawHttp.filePart("file0", "part0.bin", first),
+                RawHttp.filePart("file1", "part1.bin", second)));
+        Assert.assertEquals(files.size(), 2,
+                "Wrong number of files.\n");
+        for (FileResponse file : files) {
+            String content = file.getFileName().equals("part0.bin") ? first : second;
+            Assert.assertEquals(file.getDigest(), digest(content),
+                    "Wrong digest echoed for " + file.getFileName() + ".\n");
+            assertUploaded(file, content);
+        }
+    }
+
+    @Test(description = "Test a digest mismatch in any part stores none of the request's parts.",
+            dataProvider = "thresholds")
+    public void testDigestMismatch(int fileSizeThreshold) throws Exception {
+        server = newServer().withFileSizeThreshold(fileSizeThreshold)
+                .withDrainTimeout(DRAIN_SECONDS, TimeUnit.SECONDS).build().start();
+        String first = content(1, 100);
+        String second = content(2, 100);
+        RawHttp.Response response = RawHttp.post(PORT, UPLOAD_SERVLET_PATH, RawHttp.multipart(
+                RawHttp.fieldPart("digest.file0", digest(first)),
+                RawHttp.fieldPart("digest.file1", digest(first)),
+                RawHttp.filePart("file0", "part0.bin", first),
+                RawHttp.filePart("file1", "part1.bin", second)));
+        Assert.assertEquals(response.status, 400,
+                "Digest mismatch not rejected.\n");
+        // the request cleans up after sending its error, and background writes may be queued; draining waits for both
+        server.stop();
+        server = null;
+        Assert.assertEquals(Arrays.asList(uploadDirectory.list()), new ArrayList<String>(),
+                "Parts of a rejected request stored.\n");
+    }
+
+    //////////////////
+    // HELPER METHODS
+    //////////////////
+
+    private JettyUploadServer.Builder newServer() {
+        return JettyUploadServer.Builder.newInstance()
+                .withPort(PORT)
+                .withResourceBase(RESOURCE_BASE)
+                .withServletPath(UPLOAD_SERVLET_PATH)
+                .withUploadDirectory(uploadDirectory);
+    }
+
+    /**
+     * Bytes counting up from the seed, covering every byte value.
+     */
+    private static String content(int seed, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String digest(String content) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        return DIGEST_ALGORITHM + "=" +
+                Base64.encodeBase64String(messageDigest.digest(content.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private static List<FileResponse> upload(String body) throws IOException {
+        RawHttp.Response response = RawHttp.post(PORT, UPLOAD_SERVLET_PATH, body);
+        Assert.assertEquals(response.status, 200,
+                "Upload failed.\n");
+        Map<String, List<FileResponse>> filesMap = new ObjectMapper().readValue(response.body,
+                new TypeReference<Map<String, List<FileResponse>>>() {
+                });
+        return filesMap.get("files");
+    }
+
+    /**
+     * Checks the echo, then a GET by id straight away, which has to wait for any background write, then the file.
+     */
+    private void assertUploaded(FileResponse file, String content) throws IOException {
+        byte[] expected = content.getBytes(StandardCharsets.ISO_8859_1);
+        Assert.assertEquals(file.getLength(), expected.length,
+                "Wrong length for " + file.getFileName() + ".\n");
+        Assert.assertEquals(Base64.decodeBase64(file.getBase64()), expected,
+                "Wrong echo for " + file.getFileName() + ".\n");
+        RawHttp.Response response = RawHttp.get(PORT, UPLOAD_SERVLET_PATH + "?id=" + file.getId());
+        Assert.assertEquals(response.status, 200,
+                "Upload " + file.getFileName() + " not served.\n");
+        Assert.assertEquals(response.body, expected,
+                "Wrong content served for " + file.getFileName() + ".\n");
+        Assert.assertEquals(Files.readAllBytes(new File(uploadDirectory, file.getId() + ".tmp").toPath()), expected,
+                "Wrong content stored for " + file.getFileName() + ".\n");
+    }
+}
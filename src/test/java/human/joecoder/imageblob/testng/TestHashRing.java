@@ -0,0 +1,97 @@
+package human.joecoder.imageblob.testng;
+
+import human.joecoder.imageblob.HashRing;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for the spread and stability of consistent hashing.
+ *
+ * @author joe
+ */
+public class TestHashRing {
+
+    private static final int NODES = 4;
+    private static final int KEYS = 20000;
+    // allowed deviation from an even share
+    private static final double TOLERANCE = 0.25;
+
+    //////////////
+    // TEST CASES
+    //////////////
+
+    @Test(description = "Test keys spread evenly over the nodes.")
+    public void testDistribution() {
+        HashRing ring = new HashRing(nodes(NODES));
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            String node = ring.nodeFor(key(i));
+            Integer count = counts.get(node);
+            counts.put(node, count == null ? 1 : count + 1);
+        }
+        Assert.assertEquals(counts.size(), NODES,
+                "Not every node owns keys.\n");
+        double share = (double) KEYS / NODES;
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            Assert.assertTrue(Math.abs(count.getValue() - share) <= share * TOLERANCE,
+                    "Uneven share for " + count.getKey() + ": " + count.getValue() + " of " + KEYS + ".\n");
+        }
+    }
+
+    @Test(description = "Test rings of the same nodes agree, whatever the order the nodes are listed in.")
+    public void testDeterministic() {
+        List<String> nodes = nodes(NODES);
+        List<String> reversed = new ArrayList<>(nodes);
+        Collections.reverse(reversed);
+        HashRing ring = new HashRing(nodes);
+        HashRing other = new HashRing(reversed);
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals(other.nodeFor(key(i)), ring.nodeFor(key(i)),
+                    "Rings disagree on " + key(i) + ".\n");
+        }
+    }
+
+    @Test(description = "Test adding a node only moves keys to it, and about an even share of them.")
+    public void testAddNode() {
+        List<String> nodes = nodes(NODES);
+        HashRing ring = new HashRing(nodes);
+        List<String> grown = nodes(NODES + 1);
+        String added = grown.get(NODES);
+        HashRing grownRing = new HashRing(grown);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String before = ring.nodeFor(key(i));
+            String after = grownRing.nodeFor(key(i));
+            if (!after.equals(before)) {
+                Assert.assertEquals(after, added,
+                        "Key " + key(i) + " moved between existing nodes.\n");
+                moved++;
+            }
+        }
+        double share = (double) KEYS / (NODES + 1);
+        Assert.assertTrue(Math.abs(moved - share) <= share * TOLERANCE,
+                "Wrong number of keys moved: " + moved + " of " + KEYS + ".\n");
+    }
+
+    //////////////////
+    // HELPER METHODS
+    //////////////////
+
+    private static List<String> nodes(int count) {
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add("http://localhost:" + (8081 + i));
+        }
+        return nodes;
+    }
+
+    private static String key(int i) {
+        return "key-" + i;
+    }
+}
@@ -0,0 +1,161 @@
+package human.joecoder.imageblob.testng;
+
+import human.joecoder.imageblob.HttpForwarder;
+import human.joecoder.imageblob.StatisticsByteBufferPool;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * Unit tests for forwarding requests to another server, and for the timeouts and failures of the target.
+ *
+ * @author joe
+ */
+public class TestHttpForwarder {
+
+    private static final int PORT = 8096;
+    private static final int TARGET_PORT = 8097;
+    // nothing listens here
+    private static final int CLOSED_PORT = 8098;
+    private static final String TARGET = "http://localhost:" + TARGET_PORT;
+    private static final int TIMEOUT_MILLIS = 500;
+    // longer than the read timeout
+    private static final long SLOW_MILLIS = 2000L;
+    private static final String TEST_HEADER = "X-Test";
+
+    private Server server = null;
+    private Server target = null;
+
+    ////////////////////
+    // TESTNG LIFECYCLE
+    ////////////////////
+
+    @BeforeClass(alwaysRun = true)
+    public void beforeClass() throws Exception {
+        target = newServer(TARGET_PORT, new TargetServlet());
+        target.start();
+        HttpForwarder forwarder = new HttpForwarder(new StatisticsByteBufferPool(-1L), TIMEOUT_MILLIS, TIMEOUT_MILLIS);
+        server = newServer(PORT, new ForwardingServlet(forwarder));
+        server.start();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void afterClass() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+        if (target != null) {
+            target.stop();
+        }
+    }
+
+    //////////////
+    // TEST CASES
+    //////////////
+
+    @Test(description = "Test the path, query, headers and body are forwarded, and the response copied back.")
+    public void testForward() throws Exception {
+        RawHttp.Response response = RawHttp.send(PORT, "GET /forward/echo?q=1 HTTP/1.1\r\n" +
+                "Host: localhost:" + PORT + "\r\n" +
+                TEST_HEADER + ": value\r\n" +
+                "Connection: close\r\n" +
+                "\r\n");
+        Assert.assertEquals(response.status, 200,
+                "Forward failed.\n");
+        Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "/forward/echo?q=1 value forwarded",
+                "Wrong request forwarded.\n");
+    }
+
+    @Test(description = "Test a target that doesn't respond within the read timeout gets a 504.")
+    public void testReadTimeout() throws Exception {
+        long start = System.nanoTime();
+        RawHttp.Response response = RawHttp.get(PORT, "/forward/slow");
+        Assert.assertEquals(response.status, 504,
+                "Slow target not timed out.\n");
+        Assert.assertTrue(System.nanoTime() - start < SLOW_MILLIS * 1000000L,
+                "Waited for the slow target.\n");
+    }
+
+    @Test(description = "Test a target that can't be connected to gets a 502.")
+    public void testUnreachable() throws Exception {
+        RawHttp.Response response = RawHttp.get(PORT, "/unreachable/echo");
+        Assert.assertEquals(response.status, 502,
+                "Unreachable target not reported.\n");
+    }
+
+    @Test(description = "Test trying to forward to a target that can't be connected to leaves the response alone.")
+    public void testTryUnreachable() throws Exception {
+        RawHttp.Response response = RawHttp.get(PORT, "/try/echo");
+        Assert.assertEquals(response.status, 200,
+                "Response changed.\n");
+        Assert.assertEquals(new String(response.body, StandardCharsets.UTF_8), "fallback",
+                "Caller not left to handle the request.\n");
+    }
+
+    //////////////////
+    // HELPER METHODS
+    //////////////////
+
+    private static Server newServer(int port, HttpServlet servlet) {
+        Server server = new Server(port);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(servlet), "/*");
+        server.setHandler(context);
+        return server;
+    }
+
+    /**
+     * Forwards {@code /forward/*} to the target, {@code /unreachable/*} to a closed port, and tries
+     * {@code /try/*} against the closed port, handling it itself if that fails.
+     */
+    private static class ForwardingServlet extends HttpServlet {
+        private final HttpForwarder forwarder;
+
+        ForwardingServlet(HttpForwarder forwarder) {
+            this.forwarder = forwarder;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            String closed = "http://localhost:" + CLOSED_PORT;
+            if (req.getRequestURI().startsWith("/forward/")) {
+                forwarder.forward(req, resp, TARGET, Collections.singletonMap("X-Forwarded-Test", "forwarded"));
+            } else if (req.getRequestURI().startsWith("/unreachable/")) {
+                forwarder.forward(req, resp, closed, Collections.<String, String>emptyMap());
+            } else if (!forwarder.tryForward(req, resp, closed, Collections.<String, String>emptyMap())) {
+                resp.getWriter().write("fallback");
+            }
+        }
+    }
+
+    /**
+     * Echoes the path, query and test headers, after a delay for {@code /slow} paths.
+     */
+    private static class TargetServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            if (req.getRequestURI().endsWith("/slow")) {
+                try {
+                    Thread.sleep(SLOW_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            resp.setContentType("text/plain");
+            resp.getWriter().write(req.getRequestURI() + "?" + req.getQueryString() + " " +
+                    req.getHeader(TEST_HEADER) + " " + req.getHeader("X-Forwarded-Test"));
+        }
+    }
+}
@@ -6,6 +6,7 @@ import human.joecoder.imageblob.AppProperties;
 import human.joecoder.imageblob.Browser;
 import human.joecoder.imageblob.FileResponse;
 import human.joecoder.imageblob.JettyUploadServer;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.ArrayUtils;
 import org.openqa.selenium.By;
 import org.openqa.selenium.JavascriptExecutor;
@@ -19,6 +20,10 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -43,6 +48,17 @@ public class TestImageBlob {
     private static final String AJAX_WITH_DATA_JS =
             "webdriver(arguments[arguments.length - 1]);" + "\n" +
                     "$(arguments[0]).imageBlob().formData(arguments[1]).ajax('" + UPLOAD_SERVLET_PATH + "');";
+    private static final String AJAX_WITH_DIGEST_JS =
+            "webdriver(arguments[arguments.length - 1]);" + "\n" +
+                    "$.fn.imageBlob.digestAlgorithm = arguments[1];" + "\n" +
+                    "$(arguments[0]).imageBlob().ajax('" + UPLOAD_SERVLET_PATH + "');";
+    private static final String AJAX_WITH_WRONG_DIGEST_JS =
+            "webdriver(arguments[arguments.length - 1]);" + "\n" +
+                    "var data = {};" + "\n" +
+                    "data['digest.' + ($(arguments[0]).attr('name') || $.fn.imageBlob.defaultImageName)] = arguments[1];" +
+                    "\n" +
+                    "$(arguments[0]).imageBlob().formData(data).ajax('" + UPLOAD_SERVLET_PATH + "');";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
 
     private JettyUploadServer server = null;
     private WebDriver driver = null;
@@ -210,6 +226,36 @@ public class TestImageBlob {
                 "Additional form data not found.");
     }
 
+    @Test(description = "Test image uploads with a client-supplied digest verified by the server.",
+            dataProvider = "all")
+    public void testWithDigest(WebElement img, File sourceImage) throws Exception {
+        FileResponse fileResponse = ajaxWithDigest(img);
+        // canvas-encoded images differ from their source, so compare with the bytes actually uploaded
+        String expected = digest(Base64.decodeBase64(fileResponse.getBase64()));
+        Assert.assertEquals(fileResponse.getDigest(), expected,
+                "Wrong digest.\n");
+    }
+
+    @Test(description = "Test data URI image uploads with a client-supplied digest of the source image.",
+            dataProvider = "dataUri")
+    public void testWithDigestOfSource(WebElement img, File sourceImage) throws Exception {
+        FileResponse fileResponse = ajaxWithDigest(img);
+        String expected = digest(Files.readAllBytes(sourceImage.toPath()));
+        Assert.assertEquals(fileResponse.getDigest(), expected,
+                "Digest doesn't match the source image.\n");
+    }
+
+    @Test(description = "Test image uploads with a wrong client-supplied digest are rejected.",
+            dataProvider = "all")
+    public void testWithWrongDigest(WebElement img, File sourceImage) throws Exception {
+        String wrong = digest("not the image".getBytes(StandardCharsets.UTF_8));
+        Object obj = ((JavascriptExecutor) driver).executeAsyncScript(
+                AJAX_WITH_WRONG_DIGEST_JS, img, wrong);
+        // a List indicates the error callback
+        Assert.assertTrue(obj instanceof List,
+                "Upload with wrong digest was accepted: " + obj + "\n");
+    }
+
     //////////////////
     // HELPER METHODS
     //////////////////
@@ -232,6 +278,18 @@ public class TestImageBlob {
         return getResponse(obj);
     }
 
+    private FileResponse ajaxWithDigest(WebElement img)
+            throws IOException {
+        Object obj = ((JavascriptExecutor) driver).executeAsyncScript(
+                AJAX_WITH_DIGEST_JS, img, DIGEST_ALGORITHM);
+        return getResponse(obj);
+    }
+
+    private static String digest(byte[] bytes) throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        return DIGEST_ALGORITHM + "=" + Base64.encodeBase64String(messageDigest.digest(bytes));
+    }
+
     private FileResponse getResponse(Object obj) throws IOException {
         // a String indicates success, a List indicates failure
         if (obj instanceof List) {
@@ -0,0 +1,130 @@
+package human.joecoder.imageblob.testng;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import human.joecoder.imageblob.FileResponse;
+import human.joecoder.imageblob.JettyUploadCluster;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for uploading through the front of a cluster and reading uploads back from any node, over plain
+ * sockets; see {@link RawHttp}.
+ *
+ * @author joe
+ */
+public class TestJettyUploadCluster {
+
+    private static final int FRONT_PORT = 8092;
+    private static final int BASE_PORT = 8093;
+    private static final int NODES = 3;
+    private static final File RESOURCE_BASE = new File("src/test/webapp");
+    private static final String UPLOAD_SERVLET_PATH = "/upload";
+    // enough that every node owns some
+    private static final int UPLOADS = 30;
+
+    private JettyUploadCluster cluster = null;
+    private File uploadDirectory = null;
+
+    ////////////////////
+    // TESTNG LIFECYCLE
+    ////////////////////
+
+    @BeforeMethod(alwaysRun = true)
+    public void beforeMethod() throws Exception {
+        uploadDirectory = Files.createTempDirectory("cluster").toFile();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void afterMethod() throws Exception {
+        if (cluster != null) {
+            cluster.stop();
+            cluster = null;
+        }
+        FileUtils.deleteDirectory(uploadDirectory);
+    }
+
+    //////////////
+    // TEST CASES
+    //////////////
+
+    @Test(description = "Test uploads through the front are served by id through the front and every node.")
+    public void testGetById() throws Exception {
+        cluster = newCluster(NODES).build().start();
+        Map<String, String> uploads = upload();
+        assertServed(uploads, NODES);
+    }
+
+    @Test(description = "Test uploads are still served by id by every node after a node leaves the cluster.")
+    public void testGetByIdAfterMembershipChange() throws Exception {
+        cluster = newCluster(NODES).build().start();
+        Map<String, String> uploads = upload();
+        cluster.stop();
+        cluster = newCluster(NODES - 1).build().start();
+        assertServed(uploads, NODES - 1);
+    }
+
+    //////////////////
+    // HELPER METHODS
+    //////////////////
+
+    private JettyUploadCluster.Builder newCluster(int nodes) {
+        return JettyUploadCluster.Builder.newInstance()
+                .withNodes(nodes)
+                .withBasePort(BASE_PORT)
+                .withFrontPort(FRONT_PORT)
+                .withResourceBase(RESOURCE_BASE)
+                .withServletPath(UPLOAD_SERVLET_PATH)
+                .withUploadDirectory(uploadDirectory);
+    }
+
+    /**
+     * Uploads one file per request through the front, so each node in turn stores some.
+     *
+     * @return the content of each upload by id
+     */
+    private Map<String, String> upload() throws IOException {
+        Map<String, String> uploads = new LinkedHashMap<>();
+        for (int i = 0; i < UPLOADS; i++) {
+            String content = "upload " + i;
+            RawHttp.Response response = RawHttp.post(FRONT_PORT, UPLOAD_SERVLET_PATH,
+                    RawHttp.multipart(RawHttp.filePart("file", "upload" + i + ".txt", content)));
+            Assert.assertEquals(response.status, 200,
+                    "Upload failed.\n");
+            Map<String, List<FileResponse>> filesMap = new ObjectMapper().readValue(response.body,
+                    new TypeReference<Map<String, List<FileResponse>>>() {
+                    });
+            uploads.put(filesMap.get("files").get(0).getId(), content);
+        }
+        return uploads;
+    }
+
+    private static void assertServed(Map<String, String> uploads, int nodes) throws IOException {
+        for (Map.Entry<String, String> upload : uploads.entrySet()) {
+            byte[] expected = upload.getValue().getBytes(StandardCharsets.ISO_8859_1);
+            assertServed(FRONT_PORT, upload.getKey(), expected);
+            for (int i = 0; i < nodes; i++) {
+                assertServed(BASE_PORT + i, upload.getKey(), expected);
+            }
+        }
+    }
+
+    private static void assertServed(int port, String id, byte[] expected) throws IOException {
+        RawHttp.Response response = RawHttp.get(port, UPLOAD_SERVLET_PATH + "?id=" + id);
+        Assert.assertEquals(response.status, 200,
+                "Upload " + id + " not served on port " + port + ".\n");
+        Assert.assertEquals(response.body, expected,
+                "Wrong content served for " + id + " on port " + port + ".\n");
+    }
+}
@@ -0,0 +1,138 @@
+package human.joecoder.imageblob.testng;
+
+import human.joecoder.imageblob.JettyUploadServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for draining uploads in flight when the server stops, with uploads held open over plain sockets; see
+ * {@link RawHttp}.
+ *
+ * @author joe
+ */
+public class TestJettyUploadServer {
+
+    private static final int PORT = 8099;
+    private static final File RESOURCE_BASE = new File("src/test/webapp");
+    private static final String UPLOAD_SERVLET_PATH = "/upload";
+    private static final String BODY = RawHttp.multipart(RawHttp.filePart("file", "test.txt", "hello"));
+    // sent up front, as Jetty dispatches on first content
+    private static final int DISPATCH_BYTES = 10;
+    // declared by the stalled upload, which never sends more than the start of it
+    private static final long STALLED_LENGTH = 1000L;
+    private static final long DISPATCH_MILLIS = 1000L;
+    private static final long DRAIN_SECONDS = 3L;
+    // how far into the drain the finishing upload sends the rest of its body
+    private static final long FINISH_MILLIS = 500L;
+
+    private JettyUploadServer server = null;
+
+    ////////////////////
+    // TESTNG LIFECYCLE
+    ////////////////////
+
+    @AfterMethod(alwaysRun = true)
+    public void afterMethod() throws Exception {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+    }
+
+    //////////////
+    // TEST CASES
+    //////////////
+
+    @Test(description = "Test stopping waits out the drain timeout for a stalled upload, lets an upload finishing "
+            + "during the drain complete, and reports only the stalled one as cut off.")
+    public void testDrain() throws Exception {
+        final JettyUploadServer drained = newServer().withDrainTimeout(DRAIN_SECONDS, TimeUnit.SECONDS).build().start();
+        server = drained;
+        ExecutorService stopper = Executors.newSingleThreadExecutor();
+        try (Socket stalled = new Socket("localhost", PORT);
+             Socket finishing = new Socket("localhost", PORT)) {
+            start(stalled, STALLED_LENGTH);
+            start(finishing, BODY.length());
+            Thread.sleep(DISPATCH_MILLIS);
+
+            long stopStart = System.nanoTime();
+            Future<?> stopped = stopper.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    drained.stop();
+                    return null;
+                }
+            });
+            Thread.sleep(FINISH_MILLIS);
+            OutputStream out = finishing.getOutputStream();
+            out.write(BODY.substring(DISPATCH_BYTES).getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            Assert.assertEquals(RawHttp.read(finishing).status, 200,
+                    "Upload finishing during the drain cut off.\n");
+            Assert.assertFalse(stopped.isDone(),
+                    "Stopped without waiting for the stalled upload.\n");
+
+            stopped.get(DRAIN_SECONDS * 2, TimeUnit.SECONDS);
+            server = null;
+            Assert.assertTrue(System.nanoTime() - stopStart >= TimeUnit.SECONDS.toNanos(DRAIN_SECONDS),
+                    "Stopped before the drain timeout.\n");
+        } finally {
+            stopper.shutdownNow();
+        }
+        List<String> undrained = drained.getUndrainedUploads();
+        Assert.assertEquals(undrained.size(), 1,
+                "Wrong uploads reported cut off: " + undrained + "\n");
+        Assert.assertTrue(undrained.get(0).contains("(" + STALLED_LENGTH + " bytes"),
+                "Stalled upload not reported cut off: " + undrained + "\n");
+    }
+
+    @Test(description = "Test stopping without a drain timeout doesn't wait, and reports the upload cut off.")
+    public void testNoDrain() throws Exception {
+        JettyUploadServer undrained = newServer().build().start();
+        server = undrained;
+        try (Socket stalled = new Socket("localhost", PORT)) {
+            start(stalled, STALLED_LENGTH);
+            Thread.sleep(DISPATCH_MILLIS);
+            long stopStart = System.nanoTime();
+            undrained.stop();
+            server = null;
+            Assert.assertTrue(System.nanoTime() - stopStart < TimeUnit.SECONDS.toNanos(DRAIN_SECONDS),
+                    "Waited for the stalled upload.\n");
+        }
+        Assert.assertEquals(undrained.getUndrainedUploads().size(), 1,
+                "Stalled upload not reported cut off.\n");
+    }
+
+    //////////////////
+    // HELPER METHODS
+    //////////////////
+
+    private static JettyUploadServer.Builder newServer() {
+        return JettyUploadServer.Builder.newInstance()
+                .withPort(PORT)
+                .withResourceBase(RESOURCE_BASE)
+                .withServletPath(UPLOAD_SERVLET_PATH);
+    }
+
+    /**
+     * Sends the headers of an upload declaring the given length, and the start of its body.
+     */
+    private static void start(Socket socket, long contentLength) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write((RawHttp.postHeaders(PORT, UPLOAD_SERVLET_PATH, contentLength) + BODY.substring(0, DISPATCH_BYTES))
+                .getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+}
@@ -0,0 +1,140 @@
+package human.joecoder.imageblob.testng;
+
+import human.joecoder.imageblob.RingBuffer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit tests for the lock-free ring buffer behind the access log.
+ *
+ * @author joe
+ */
+public class TestRingBuffer {
+
+    private static final int PRODUCERS = 4;
+    private static final int CONSUMERS = 2;
+    private static final int PER_PRODUCER = 20000;
+
+    @Test(description = "Test elements are polled in the order offered.")
+    public void testFifo() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        Assert.assertNull(ring.poll(),
+                "New buffer not empty.\n");
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(ring.offer(i));
+        }
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(ring.poll(), Integer.valueOf(i),
+                    "Wrong order.\n");
+        }
+        Assert.assertNull(ring.poll(),
+                "Drained buffer not empty.\n");
+    }
+
+    @Test(description = "Test offers fail when full, with capacity rounded up to a power of two.")
+    public void testFull() {
+        RingBuffer<Integer> ring = new RingBuffer<>(3);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(ring.offer(i),
+                    "Offer " + i + " failed below capacity.\n");
+        }
+        Assert.assertFalse(ring.offer(4),
+                "Offer succeeded when full.\n");
+        Assert.assertEquals(ring.poll(), Integer.valueOf(0));
+        Assert.assertTrue(ring.offer(4),
+                "Offer failed after a poll freed a slot.\n");
+    }
+
+    @Test(description = "Test order is kept across many laps of the array.")
+    public void testWrap() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        int next = 0;
+        for (int i = 0; i < 1000; i++) {
+            // vary the fill level so head and tail wrap at different points
+            int batch = i % 4 + 1;
+            for (int j = 0; j < batch; j++) {
+                Assert.assertTrue(ring.offer(i * 4 + j));
+            }
+            for (int j = 0; j < batch; j++) {
+                Assert.assertEquals(ring.poll(), Integer.valueOf(i * 4 + j),
+                        "Wrong order on lap " + i + ".\n");
+                next++;
+            }
+            Assert.assertNull(ring.poll());
+        }
+        Assert.assertEquals(next, 2500);
+    }
+
+    @Test(description = "Test an out of range capacity is rejected.",
+            expectedExceptions = IllegalArgumentException.class)
+    public void testCapacityOutOfRange() {
+        new RingBuffer<Integer>(0);
+    }
+
+    @Test(description = "Test concurrent producers and consumers neither lose nor duplicate elements.")
+    public void testConcurrent() throws Exception {
+        final RingBuffer<Long> ring = new RingBuffer<>(64);
+        final AtomicInteger producing = new AtomicInteger(PRODUCERS);
+        final AtomicLong polled = new AtomicLong();
+        final AtomicLong polledSum = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS + CONSUMERS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final long base = (long) p * PER_PRODUCER;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (long i = 1; i <= PER_PRODUCER; i++) {
+                        // a failed offer is what the access log counts as a drop; retry instead
+                        while (!ring.offer(base + i)) {
+                            rejected.incrementAndGet();
+                            Thread.yield();
+                        }
+                    }
+                    producing.decrementAndGet();
+                    return null;
+                }
+            }));
+        }
+        for (int c = 0; c < CONSUMERS; c++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (true) {
+                        boolean done = producing.get() == 0;
+                        Long element = ring.poll();
+                        if (element != null) {
+                            polled.incrementAndGet();
+                            polledSum.addAndGet(element);
+                        } else if (done) {
+                            return null;
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        long total = (long) PRODUCERS * PER_PRODUCER;
+        Assert.assertEquals(polled.get(), total,
+                "Elements lost or duplicated (" + rejected.get() + " offers rejected while full).\n");
+        Assert.assertEquals(polledSum.get(), total * (total + 1) / 2,
+                "Wrong elements polled.\n");
+        Assert.assertNull(ring.poll());
+    }
+}
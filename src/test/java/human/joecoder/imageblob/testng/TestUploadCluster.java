@@ -0,0 +1,166 @@
+package human.joecoder.imageblob.testng;
+
+import human.joecoder.imageblob.UploadCluster;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Unit tests for partitioning uploads among the nodes of a cluster, and expiring them.
+ *
+ * @author joe
+ */
+public class TestUploadCluster {
+
+    private static final List<String> NODES = Arrays.asList(
+            "http://localhost:8081", "http://localhost:8082", "http://localhost:8083");
+    // one node replaced
+    private static final List<String> CHANGED_NODES = Arrays.asList(
+            "http://localhost:8081", "http://localhost:8082", "http://localhost:8084");
+    private static final String FORMER_NODE = "http://localhost:8089";
+    private static final long RETENTION_MILLIS = 60000L;
+    private static final int IDS = 300;
+
+    private File storageRoot = null;
+
+    ////////////////////
+    // TESTNG LIFECYCLE
+    ////////////////////
+
+    @BeforeMethod(alwaysRun = true)
+    public void beforeMethod() throws Exception {
+        storageRoot = Files.createTempDirectory("cluster").toFile();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void afterMethod() throws Exception {
+        FileUtils.deleteDirectory(storageRoot);
+    }
+
+    //////////////
+    // TEST CASES
+    //////////////
+
+    @Test(description = "Test new ids name their owner's partition, and are spread over every node.")
+    public void testNewUploadId() throws Exception {
+        UploadCluster cluster = newCluster(NODES.get(0), NODES);
+        Set<String> owners = new HashSet<>();
+        for (int i = 0; i < IDS; i++) {
+            String id = cluster.newUploadId();
+            Assert.assertTrue(cluster.isUploadId(id),
+                    "Malformed id " + id + ".\n");
+            String owner = cluster.ownerOf(id);
+            Assert.assertTrue(NODES.contains(owner),
+                    "No owner for " + id + ".\n");
+            Assert.assertEquals(cluster.directoryFor(id), newCluster(owner, NODES).directoryFor(id),
+                    "Nodes disagree on the partition of " + id + ".\n");
+            Assert.assertTrue(cluster.directoryFor(id).isDirectory(),
+                    "Partition of " + id + " not created.\n");
+            owners.add(owner);
+        }
+        Assert.assertEquals(owners, new HashSet<>(NODES),
+                "Ids not spread over every node.\n");
+        Assert.assertFalse(cluster.isUploadId(UUID.randomUUID().toString()),
+                "Id without a partition accepted.\n");
+    }
+
+    @Test(description = "Test an upload stays in its partition when nodes join and leave, and its owner is kept "
+            + "while still a member.")
+    public void testMembershipChange() throws Exception {
+        UploadCluster cluster = newCluster(NODES.get(0), NODES);
+        UploadCluster changed = newCluster(CHANGED_NODES.get(0), CHANGED_NODES);
+        for (int i = 0; i < IDS; i++) {
+            String id = cluster.newUploadId();
+            String owner = cluster.ownerOf(id);
+            Assert.assertEquals(changed.directoryFor(id), cluster.directoryFor(id),
+                    "Partition of " + id + " changed with membership.\n");
+            Assert.assertEquals(changed.ownerOf(id), CHANGED_NODES.contains(owner) ? owner : null,
+                    "Wrong owner of " + id + " after membership changed.\n");
+        }
+    }
+
+    @Test(description = "Test each node expires only old files in its own partition.")
+    public void testExpireUploads() throws Exception {
+        UploadCluster cluster = newCluster(NODES.get(0), NODES);
+        File ownOld = write(cluster, NODES.get(0), true);
+        File ownNew = write(cluster, NODES.get(0), false);
+        File otherOld = write(cluster, NODES.get(1), true);
+        File unrelated = new File(storageRoot, "unrelated");
+        Assert.assertTrue(unrelated.mkdir());
+        File unrelatedOld = age(new File(unrelated, "file.tmp"));
+        Assert.assertEquals(cluster.expireUploads(), 1,
+                "Wrong number of files expired.\n");
+        Assert.assertFalse(ownOld.exists(),
+                "Old upload not expired.\n");
+        Assert.assertTrue(ownNew.exists(),
+                "New upload expired.\n");
+        Assert.assertTrue(otherOld.exists(),
+                "Another node's upload expired.\n");
+        Assert.assertTrue(unrelatedOld.exists(),
+                "File outside any partition expired.\n");
+    }
+
+    @Test(description = "Test the partition of a former node is expired by exactly one of the remaining nodes.")
+    public void testExpireOrphans() throws Exception {
+        UploadCluster former = newCluster(FORMER_NODE, Arrays.asList(FORMER_NODE));
+        File orphan = write(former, FORMER_NODE, true);
+        int expired = 0;
+        for (String node : NODES) {
+            UploadCluster cluster = newCluster(node, NODES);
+            boolean existed = orphan.exists();
+            int count = cluster.expireUploads();
+            if (existed && !orphan.exists()) {
+                Assert.assertEquals(count, 1,
+                        "Wrong number of files expired.\n");
+            }
+            expired += count;
+        }
+        Assert.assertFalse(orphan.exists(),
+                "Orphaned upload not expired.\n");
+        Assert.assertEquals(expired, 1,
+                "Orphaned upload expired by more than one node.\n");
+    }
+
+    //////////////////
+    // HELPER METHODS
+    //////////////////
+
+    private UploadCluster newCluster(String self, List<String> nodes) throws IOException {
+        return new UploadCluster(self, nodes, storageRoot, RETENTION_MILLIS);
+    }
+
+    /**
+     * Writes an upload owned by the given node, as if stored by the node, and backdates it past the retention if
+     * asked.
+     */
+    private static File write(UploadCluster cluster, String owner, boolean old) throws IOException {
+        String id;
+        do {
+            id = cluster.newUploadId();
+        } while (!owner.equals(cluster.ownerOf(id)));
+        File file = new File(cluster.directoryFor(id), id + ".tmp");
+        return old ? age(file) : write(file);
+    }
+
+    private static File write(File file) throws IOException {
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        return file;
+    }
+
+    private static File age(File file) throws IOException {
+        write(file);
+        Assert.assertTrue(file.setLastModified(System.currentTimeMillis() - 2 * RETENTION_MILLIS));
+        return file;
+    }
+}
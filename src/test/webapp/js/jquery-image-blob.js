@@ -25,7 +25,8 @@
         this.blob = function () {
             var img = getFirstMatchedDomImage(this);
             if (!img) return null;
-            return getImageBlob(img);
+            var image = getImageData(img);
+            return createBlob(image.mimeType, image.bytes);
         };
 
         /**
@@ -49,6 +50,11 @@
          * a jQuery AJAX request with it.  The "name" attribute of the IMG is used
          * as the request parameter name, or a default name is used.
          *
+         * If $.fn.imageBlob.digestAlgorithm is set and SubtleCrypto is available,
+         * a digest of the image is sent in the "digest.<name>" parameter so the
+         * server can verify the upload.  Since hashing is asynchronous, a promise
+         * is returned instead of the jqXHR in that case.
+         *
          * Usage:
          *        $('img').imageBlob().ajax('/upload', {
          * 			complete: function(jqXHR, textStatus) { alert(textStatus); }
@@ -56,12 +62,14 @@
          *
          * @param url       [optional] The destination URL
          * @param settings  [optional] AJAX settings object (overrides the plugin defaults)
-         * @returns         A jqXHR object, or null if first matched element is not an IMG.
+         * @returns         A jqXHR object (or promise, see above), or null if first matched element is not an IMG.
          */
         this.ajax = function (url, settings) {
             // convert to blob
-            var blob = this.blob();
-            if (!blob) return null;
+            var img = getFirstMatchedDomImage(this);
+            if (!img) return null;
+            var image = getImageData(img);
+            var blob = createBlob(image.mimeType, image.bytes);
 
             // check optional params
             if (typeof url == 'object') {
@@ -79,11 +87,22 @@
             formData.append(filename, blob, filename);
             ajaxSettings.data = formData;
 
-            // perform the AJAX request
-            if (typeof url == 'string') {
-                return $.ajax(url, ajaxSettings);
+            // optionally digest the blob before sending it
+            var algorithm = $.fn.imageBlob.digestAlgorithm;
+            if (typeof algorithm == 'string' && isDigestSupported()) {
+                var deferred = $.Deferred();
+                window.crypto.subtle.digest(algorithm, image.bytes).then(function (hash) {
+                    formData.append(DIGEST_PARAM_PREFIX + filename, algorithm + '=' + toBase64(hash));
+                    send(url, ajaxSettings).done(deferred.resolve).fail(deferred.reject);
+                }, function (err) {
+                    if (typeof ajaxSettings.error == 'function') {
+                        ajaxSettings.error(null, 'digest', err);
+                    }
+                    deferred.reject(null, 'digest', err);
+                });
+                return deferred.promise();
             }
-            return $.ajax(ajaxSettings);
+            return send(url, ajaxSettings);
         }
 
         /////////////////////////////////////
@@ -93,6 +112,7 @@
         var formData;
         var DATA_URI_REGEXP = /data:(image\/[^;]+);base64,(.+)/;
         var JPEG_REGEXP = /.*\.jpe?g/g;
+        var DIGEST_PARAM_PREFIX = 'digest.';
 
         function getFirstMatchedDomImage($img) {
             if ($img.length == 0 || 'IMG' != ($img.prop('tagName'))) {
@@ -109,9 +129,29 @@
             return name;
         }
 
-        function getImageBlob(img) {
+        function getImageData(img) {
             var matches = parseDataUri(img);	// [src, mimeType, dataUri]
-            return createBlob(matches[1], matches[2]);
+            return {mimeType: matches[1], bytes: decodeBase64(matches[2])};
+        }
+
+        function send(url, ajaxSettings) {
+            if (typeof url == 'string') {
+                return $.ajax(url, ajaxSettings);
+            }
+            return $.ajax(ajaxSettings);
+        }
+
+        function isDigestSupported() {
+            return typeof window.crypto == 'object' && typeof window.crypto.subtle == 'object';
+        }
+
+        function toBase64(buffer) {
+            var bytes = new Uint8Array(buffer);
+            var chars = '';
+            for (var i = 0; i < bytes.length; i++) {
+                chars += String.fromCharCode(bytes[i]);
+            }
+            return btoa(chars);
         }
 
         function parseDataUri(img) {
@@ -137,14 +177,18 @@
             return matches;
         }
 
-        function createBlob(mimeType, dataUri) {
+        function decodeBase64(dataUri) {
             var base64 = atob(dataUri);
             var charCodes = [];
             for (var i = 0; i < base64.length; i++) {
                 charCodes.push(base64.charCodeAt(i));
             }
+            return new Uint8Array(charCodes);
+        }
+
+        function createBlob(mimeType, bytes) {
             return new Blob(
-                [new Uint8Array(charCodes)],
+                [bytes],
                 {type: mimeType}
             );
         }
@@ -168,4 +212,7 @@
     // Default image name (used when "name" attribute is missing).
     $.fn.imageBlob.defaultImageName = 'IMG_Upload';
 
+    // Digest algorithm sent with uploads for server-side verification, e.g. 'SHA-256' (disabled when null).
+    $.fn.imageBlob.digestAlgorithm = null;
+
 })(jQuery, window, document);
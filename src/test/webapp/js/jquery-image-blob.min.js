@@ -1 +1 @@
-(function(c,b,a,d){c.fn.imageBlob=function(e){this.blob=function(){var n=f(this);if(!n){return null}return g(n)};this.formData=function(p){if(typeof p=="object"){var o=new FormData();for(var n in p){o.append(n,p[n])}h=o}return this};this.ajax=function(p,q){var o=this.blob();if(!o){return null}if(typeof p=="object"){q=p;p=d}q=q||{};var r=c.extend({},c.fn.imageBlob.ajaxSettings,q);var n=i(this);if(typeof h=="undefined"){h=new FormData()}h.append(n,o,n);r.data=h;if(typeof p=="string"){return c.ajax(p,r)}return c.ajax(r)};var h;var j=/data:(image\/[^;]+);base64,(.+)/;var k=/.*\.jpe?g/g;function f(n){if(n.length==0||"IMG"!=(n.prop("tagName"))){return null}return n.get(0)}function i(o){var n=o.attr("name");if(typeof n=="undefined"){n=c.fn.imageBlob.defaultImageName}return n}function g(n){var o=m(n);return l(o[1],o[2])}function m(o){var r=c(o).attr("src");r=r.replace(/\s/g,"");var q=r.match(j);if(q==null){if(typeof e!="string"){if(r.match(k)!=null){e="image/jpeg"}else{e="image/png"}}var p=a.createElement("canvas");var n=p.getContext("2d");p.width=o.width;p.height=o.height;n.drawImage(o,0,0);r=p.toDataURL(e);q=r.match(j)}return q}function l(r,n){var o=atob(n);var q=[];for(var p=0;p<o.length;p++){q.push(o.charCodeAt(p))}return new Blob([new Uint8Array(q)],{type:r})}return this};c.fn.imageBlob.ajaxSettings=c.extend({},c.ajaxSettings,{cache:false,processData:false,contentType:false,type:"POST"});c.fn.imageBlob.defaultImageName="IMG_Upload"})(jQuery,window,document);
\ No newline at end of file
+(function(c,b,a,d){c.fn.imageBlob=function(e){this.blob=function(){var s=f(this);if(!s){return null}var t=m(s);return o(t.mimeType,t.bytes)};this.formData=function(u){if(typeof u=="object"){var t=new FormData();for(var s in u){t.append(s,u[s])}h=t}return this};this.ajax=function(u,w){var x=f(this);if(!x){return null}var v=m(x);var s=o(v.mimeType,v.bytes);if(typeof u=="object"){w=u;u=d}w=w||{};var z=c.extend({},c.fn.imageBlob.ajaxSettings,w);var t=i(this);if(typeof h=="undefined"){h=new FormData()}h.append(t,s,t);z.data=h;var y=c.fn.imageBlob.digestAlgorithm;if(typeof y=="string"&&k()){var A=c.Deferred();b.crypto.subtle.digest(y,v.bytes).then(function(B){h.append(q+t,y+"="+r(B));j(u,z).done(A.resolve).fail(A.reject)},function(B){if(typeof z.error=="function"){z.error(null,"digest",B)}A.reject(null,"digest",B)});return A.promise()}return j(u,z)};var h;var l=/data:(image\/[^;]+);base64,(.+)/;var n=/.*\.jpe?g/g;var q="digest.";function f(s){if(s.length==0||"IMG"!=(s.prop("tagName"))){return null}return s.get(0)}function i(t){var s=t.attr("name");if(typeof s=="undefined"){s=c.fn.imageBlob.defaultImageName}return s}function m(s){var t=p(s);return{mimeType:t[1],bytes:g(t[2])}}function j(s,t){if(typeof s=="string"){return c.ajax(s,t)}return c.ajax(t)}function k(){return typeof b.crypto=="object"&&typeof b.crypto.subtle=="object"}function r(t){var s=new Uint8Array(t);var v="";for(var u=0;u<s.length;u++){v+=String.fromCharCode(s[u])}return btoa(v)}function p(t){var w=c(t).attr("src");w=w.replace(/\s/g,"");var v=w.match(l);if(v==null){if(typeof e!="string"){if(w.match(n)!=null){e="image/jpeg"}else{e="image/png"}}var u=a.createElement("canvas");var s=u.getContext("2d");u.width=t.width;u.height=t.height;s.drawImage(t,0,0);w=u.toDataURL(e);v=w.match(l)}return v}function g(s){var t=atob(s);var v=[];for(var u=0;u<t.length;u++){v.push(t.charCodeAt(u))}return new Uint8Array(v)}function o(t,s){return new Blob([s],{type:t})}return this};c.fn.imageBlob.ajaxSettings=c.extend({},c.ajaxSettings,{cache:false,processData:false,contentType:false,type:"POST"});c.fn.imageBlob.defaultImageName="IMG_Upload";c.fn.imageBlob.digestAlgorithm=null})(jQuery,window,document);
\ No newline at end of file